@@ -0,0 +1,127 @@
+package com.github.atramos.jaws;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Runs blocking S3 operations on a bounded pool and exposes them as
+ * CompletableFutures that can be cancelled and timed out.
+ *
+ * Unlike CompletableFuture.supplyAsync(), cancelling the returned future (or
+ * letting it time out) interrupts the thread running the operation, which
+ * aborts the underlying S3 request.
+ */
+public class AwsS3AsyncExecutor implements Closeable {
+
+	private final ExecutorService executor;
+
+	private final boolean ownsExecutor;
+
+	private final ScheduledThreadPoolExecutor timer;
+
+	/**
+	 * Create an executor with its own pool of the given size.
+	 *
+	 * @param threads
+	 */
+	public AwsS3AsyncExecutor(int threads) {
+		this(threads, "s3-async");
+	}
+
+	AwsS3AsyncExecutor(int threads, String name) {
+		this(newBoundedPool(threads, name), true);
+	}
+
+	/**
+	 * Run operations on a caller-managed executor, which is not shut down by
+	 * {@link #close()}.
+	 *
+	 * @param executor
+	 */
+	public AwsS3AsyncExecutor(ExecutorService executor) {
+		this(executor, false);
+	}
+
+	private AwsS3AsyncExecutor(ExecutorService executor, boolean ownsExecutor) {
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.timer = new ScheduledThreadPoolExecutor(1, AwsS3Template.daemonThreadFactory("s3-async-timer"));
+		this.timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private static ExecutorService newBoundedPool(int threads, String name) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), AwsS3Template.daemonThreadFactory(name));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Run an operation asynchronously.
+	 *
+	 * @param operation
+	 * @param timeout maximum run time, including time spent queued; 0 for
+	 *            none
+	 * @param unit
+	 * @return a future that completes with the operation's result, or
+	 *         exceptionally with a TimeoutException once the timeout elapses
+	 */
+	public <T> CompletableFuture<T> supply(Supplier<T> operation, long timeout, TimeUnit unit) {
+		final AtomicReference<Future<?>> task = new AtomicReference<>();
+		final CompletableFuture<T> result = new CompletableFuture<T>() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = super.cancel(mayInterruptIfRunning);
+				Future<?> t = task.get();
+				if (t != null) {
+					t.cancel(true);
+				}
+				return cancelled;
+			}
+		};
+
+		task.set(executor.submit(() -> {
+			try {
+				result.complete(operation.get());
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			}
+		}));
+		if (result.isCancelled()) { // cancelled before the task was recorded
+			task.get().cancel(true);
+		}
+
+		if (timeout > 0) {
+			final ScheduledFuture<?> expiry = timer.schedule(() -> {
+				if (result.completeExceptionally(
+						new TimeoutException("S3 operation timed out after " + timeout + " " + unit))) {
+					task.get().cancel(true);
+				}
+			}, timeout, unit);
+			result.whenComplete((r, e) -> expiry.cancel(false));
+		}
+		return result;
+	}
+
+	public <T> CompletableFuture<T> supply(Supplier<T> operation) {
+		return supply(operation, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void close() {
+		timer.shutdownNow();
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+}
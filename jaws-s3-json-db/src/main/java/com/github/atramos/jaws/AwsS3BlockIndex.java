@@ -0,0 +1,71 @@
+package com.github.atramos.jaws;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sparse index of an object written by
+ * {@link AwsS3Template#putIndexedList}: the object is a sequence of
+ * independently compressed gzip members (BGZF-style blocks) holding JSON
+ * lines sorted by one field, and the index records the first key and byte
+ * range of every block. Records with equal keys never straddle two blocks, so
+ * a lookup needs exactly one ranged GET.
+ *
+ * The index is stored next to the object under "_" + name + ".index", which
+ * Athena skips.
+ */
+public class AwsS3BlockIndex {
+
+	public String keyField;
+
+	/**
+	 * ETag of the object the index was written with; lookups only read
+	 * blocks of that version. Null in indexes written before it was recorded,
+	 * which are checked by length only.
+	 */
+	public String etag;
+
+	/**
+	 * Compressed size of the whole object.
+	 */
+	public long length;
+
+	public List<Block> blocks = new ArrayList<>();
+
+	public static class Block {
+
+		public String firstKey;
+
+		public long offset;
+
+		public long length;
+
+		public long records;
+	}
+
+	/**
+	 * Key of the index object of path.
+	 */
+	public static String indexKey(String path) {
+		int slash = path.lastIndexOf('/');
+		return path.substring(0, slash + 1) + "_" + path.substring(slash + 1) + ".index";
+	}
+
+	/**
+	 * The only block that can hold records with the given key, or null if
+	 * the key sorts before the first block.
+	 */
+	public Block blockFor(String key) {
+		int lo = 0, hi = blocks.size() - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (blocks.get(mid).firstKey.compareTo(key) <= 0) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found < 0 ? null : blocks.get(found);
+	}
+}
@@ -1,10 +1,13 @@
 package com.github.atramos.jaws;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -17,9 +20,11 @@ import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import com.amazonaws.util.IOUtils;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class AwsS3Cache<T> {
@@ -126,13 +131,21 @@ public class AwsS3Cache<T> {
 				}
 			}
 
-			String data = map().entrySet().stream().map(e -> {
-				String address = e.getKey();
-				String json = e.getValue();
-				return address.replace(CACHE_DELIMITER.charAt(0), '/') + CACHE_DELIMITER + json + "\n";
-			}).collect(Collectors.joining());
-
-			s3.gzipWrite(path, data);
+			if (s3.getEncoding() == AwsS3Encoding.JSON) {
+				String data = map().entrySet().stream().map(e -> {
+					String address = e.getKey();
+					String json = e.getValue();
+					return address.replace(CACHE_DELIMITER.charAt(0), '/') + CACHE_DELIMITER + json + "\n";
+				}).collect(Collectors.joining());
+
+				s3.gzipWrite(path, data);
+			} else {
+				List<StoredEntry> entries = new ArrayList<>(map().size());
+				for (Entry<String, String> e : map().entrySet()) {
+					entries.add(new StoredEntry(e.getKey(), om.readTree(e.getValue())));
+				}
+				s3.putList(path, StoredEntry.class, entries);
+			}
 
 			dirtyCount.set(0);
 		}
@@ -156,18 +169,53 @@ public class AwsS3Cache<T> {
 	}
 
 	private synchronized Map<String, String> getCache(String path) {
-		if (!s3.exists(path)) {
+		InputStream in = s3.openList(new AwsS3FetchParams(path).withNonexistentAsNull());
+		if (in == null) {
 			logger.warning("Creating: " + path);
 			return new HashMap<>();
 		}
-		String content = s3.gzipRead(path, false);
-		final Map<String, String> collect = Arrays.stream(content.split("\n")).filter(line -> !line.isEmpty())
-				.map(line -> line.split("\\" + CACHE_DELIMITER, 2))
-				.collect(Collectors.toMap(a -> a[0].toUpperCase(), a -> a[1], (a, b) -> a));
+		final Map<String, String> collect;
+		try (BufferedInputStream is = new BufferedInputStream(in, 65536)) {
+			if (AwsS3Encoding.detect(is) == AwsS3Encoding.JSON) {
+				String content = IOUtils.toString(is);
+				collect = Arrays.stream(content.split("\n")).filter(line -> !line.isEmpty())
+						.map(line -> line.split("\\" + CACHE_DELIMITER, 2))
+						.collect(Collectors.toMap(a -> a[0].toUpperCase(), a -> a[1], (a, b) -> a));
+			} else {
+				collect = new HashMap<>();
+				try (Stream<StoredEntry> entries = s3.decodeList(is, StoredEntry.class)) {
+					for (Iterator<StoredEntry> it = entries.iterator(); it.hasNext();) {
+						StoredEntry e = it.next();
+						collect.putIfAbsent(e.k.toUpperCase(), om.writeValueAsString(e.v));
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 		logger.info("Read " + collect.size() + " entries from " + path);
 		return collect;
 	}
 
+	/**
+	 * Stored form of a cache entry when the template writes a binary
+	 * encoding. The value is kept as a tree, so it is encoded in the binary
+	 * format too rather than as embedded JSON text.
+	 */
+	static class StoredEntry {
+		public String k;
+
+		public JsonNode v;
+
+		public StoredEntry() {
+		}
+
+		StoredEntry(String k, JsonNode v) {
+			this.k = k;
+			this.v = v;
+		}
+	}
+
 	public synchronized <U> Map<U,T> get(Set<U> keys, Function<U,String> keyer, Function<List<U>,List<T>> func) throws JsonParseException, JsonMappingException, IOException {
 		Map<String, String> tMap = map();
 		List<U> remain = new ArrayList<>();
@@ -0,0 +1,192 @@
+package com.github.atramos.jaws;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+
+/**
+ * Long-lived, pooled S3 clients shared by all operations of an
+ * {@link AwsS3Template}, one per bucket/region pair.
+ *
+ * Each client owns an HTTP connection pool, so creating one per call throws
+ * away keep-alive connections and TLS sessions; clients handed out here must
+ * not be shut down by callers, use {@link #close()} instead.
+ */
+public class AwsS3ClientRegistry implements Closeable {
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 64;
+
+	public static final int DEFAULT_SOCKET_TIMEOUT = 30000;
+
+	public static final int DEFAULT_CONNECTION_TIMEOUT = 10000;
+
+	public static final long DEFAULT_CONNECTION_MAX_IDLE = 60000;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final Map<String, AmazonS3Client> clients = new ConcurrentHashMap<>();
+
+	private final AWSCredentialsProvider awsCredentials;
+
+	private final ClientConfiguration clientConfiguration;
+
+	private final List<RequestHandler2> requestHandlers = new CopyOnWriteArrayList<>();
+
+	private volatile boolean closed;
+
+	public AwsS3ClientRegistry(AWSCredentialsProvider awsCredentials) {
+		this(awsCredentials, defaultClientConfiguration());
+	}
+
+	public AwsS3ClientRegistry(AWSCredentialsProvider awsCredentials,
+			ClientConfiguration clientConfiguration) {
+		this.awsCredentials = awsCredentials;
+		this.clientConfiguration = clientConfiguration;
+	}
+
+	/**
+	 * Defaults tuned for many small concurrent requests: a larger pool than
+	 * the SDK default of 50, TCP keep-alive, and bounded socket timeouts so a
+	 * stalled connection surfaces as an error instead of a hung thread.
+	 */
+	public static ClientConfiguration defaultClientConfiguration() {
+		return new ClientConfiguration()
+				.withMaxConnections(DEFAULT_MAX_CONNECTIONS)
+				.withSocketTimeout(DEFAULT_SOCKET_TIMEOUT)
+				.withConnectionTimeout(DEFAULT_CONNECTION_TIMEOUT)
+				.withConnectionMaxIdleMillis(DEFAULT_CONNECTION_MAX_IDLE)
+				.withTcpKeepAlive(true);
+	}
+
+	public ClientConfiguration getClientConfiguration() {
+		return clientConfiguration;
+	}
+
+	/**
+	 * Install a request handler on all clients, current and future.
+	 *
+	 * @param handler
+	 */
+	public void addRequestHandler(RequestHandler2 handler) {
+		requestHandlers.add(handler);
+	}
+
+	/**
+	 * Return the shared client for the given bucket and region, creating it
+	 * on first use.
+	 *
+	 * @param bucket
+	 * @param region
+	 * @return
+	 */
+	public AmazonS3Client getClient(String bucket, Region region) {
+		if (closed) {
+			throw new IllegalStateException("S3 client registry is closed");
+		}
+		return clients.computeIfAbsent(bucket + "@" + region.getName(), k -> {
+			AmazonS3Client s3client = (AmazonS3Client) AmazonS3ClientBuilder.standard()
+					.withCredentials(awsCredentials)
+					.withClientConfiguration(clientConfiguration)
+					.withRegion(region.getName())
+					.withRequestHandlers(new Handlers())
+					.build();
+			logger.fine("created S3 client for " + k + " (maxConnections="
+					+ clientConfiguration.getMaxConnections() + ")");
+			return s3client;
+		});
+	}
+
+	/**
+	 * Passes every callback on to the handlers registered so far, so handlers
+	 * added after a client was built apply to it too.
+	 */
+	private class Handlers extends RequestHandler2 {
+
+		@Override
+		public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+			for (RequestHandler2 handler : requestHandlers) {
+				request = handler.beforeExecution(request);
+			}
+			return request;
+		}
+
+		@Override
+		public AmazonWebServiceRequest beforeMarshalling(AmazonWebServiceRequest request) {
+			for (RequestHandler2 handler : requestHandlers) {
+				request = handler.beforeMarshalling(request);
+			}
+			return request;
+		}
+
+		@Override
+		public void beforeRequest(Request<?> request) {
+			for (RequestHandler2 handler : requestHandlers) {
+				handler.beforeRequest(request);
+			}
+		}
+
+		@Override
+		public void beforeAttempt(HandlerBeforeAttemptContext context) {
+			for (RequestHandler2 handler : requestHandlers) {
+				handler.beforeAttempt(context);
+			}
+		}
+
+		@Override
+		public HttpResponse beforeUnmarshalling(Request<?> request, HttpResponse response) {
+			for (RequestHandler2 handler : requestHandlers) {
+				response = handler.beforeUnmarshalling(request, response);
+			}
+			return response;
+		}
+
+		@Override
+		public void afterAttempt(HandlerAfterAttemptContext context) {
+			for (RequestHandler2 handler : requestHandlers) {
+				handler.afterAttempt(context);
+			}
+		}
+
+		@Override
+		public void afterResponse(Request<?> request, Response<?> response) {
+			for (RequestHandler2 handler : requestHandlers) {
+				handler.afterResponse(request, response);
+			}
+		}
+
+		@Override
+		public void afterError(Request<?> request, Response<?> response, Exception e) {
+			for (RequestHandler2 handler : requestHandlers) {
+				handler.afterError(request, response, e);
+			}
+		}
+	}
+
+	/**
+	 * Shut down all clients and release their connection pools.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (AmazonS3Client s3client : clients.values()) {
+			s3client.shutdown();
+		}
+		clients.clear();
+	}
+}
@@ -0,0 +1,28 @@
+package com.github.atramos.jaws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression format of a stored object. See {@link AwsS3Codecs} for the
+ * available implementations, how one is chosen for a given key and how to
+ * register others.
+ */
+public interface AwsS3Codec {
+
+	/**
+	 * @return the Content-Encoding stored with objects in this format, e.g.
+	 *         "identity" for uncompressed objects, or null for none
+	 */
+	String getContentEncoding();
+
+	/**
+	 * @return the key suffix that selects this format, e.g. ".gz"
+	 */
+	String getSuffix();
+
+	InputStream decode(InputStream in) throws IOException;
+
+	OutputStream encode(OutputStream out) throws IOException;
+}
@@ -0,0 +1,332 @@
+package com.github.atramos.jaws;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * The compression formats understood by {@link AwsS3Template}:
+ *
+ * <ul>
+ * <li>gzip (".gz") - the default, and the only one Athena can read</li>
+ * <li>zstd (".zst") - similar ratio, several times faster to decompress;
+ * requires com.github.luben:zstd-jni</li>
+ * <li>lz4 (".lz4") - larger output, fastest to decompress; requires
+ * org.lz4:lz4-java</li>
+ * </ul>
+ *
+ * {@link AwsS3Template} selects the format of what it writes by the suffix
+ * of the key, gzip for any other key, so writes are always compressed. The
+ * {@link #none()} codec is for reading: it decodes objects stored with
+ * Content-Encoding "identity".
+ *
+ * Codecs are looked up by suffix and by Content-Encoding in a registry; the
+ * formats above are registered by default and {@link #register(AwsS3Codec)}
+ * adds others or replaces them.
+ *
+ * The optional zstd and lz4 libraries are only called from their own nested
+ * classes, so they are only loaded when objects in those formats are used.
+ */
+public class AwsS3Codecs {
+
+	public static final int DEFAULT_ZSTD_LEVEL = 3;
+
+	private static final AwsS3Codec NONE = new None();
+
+	private static final Map<String, AwsS3Codec> BY_SUFFIX = new ConcurrentHashMap<>();
+
+	private static final Map<String, AwsS3Codec> BY_CONTENT_ENCODING = new ConcurrentHashMap<>();
+
+	static {
+		register(gzip(-1, false));
+		register(zstd(DEFAULT_ZSTD_LEVEL));
+		register(lz4());
+		register(NONE);
+	}
+
+	private AwsS3Codecs() {
+	}
+
+	/**
+	 * Make a codec selectable by its suffix, if not empty, and by its
+	 * Content-Encoding, if not null, replacing any codec registered for
+	 * either. Affects all templates: register codecs at startup.
+	 *
+	 * @param codec
+	 */
+	public static void register(AwsS3Codec codec) {
+		if (!codec.getSuffix().isEmpty()) {
+			BY_SUFFIX.put(codec.getSuffix(), codec);
+		}
+		if (codec.getContentEncoding() != null) {
+			BY_CONTENT_ENCODING.put(codec.getContentEncoding().toLowerCase(), codec);
+		}
+	}
+
+	public static AwsS3Codec gzip(int level, boolean parallel) {
+		return new Gzip(level, parallel);
+	}
+
+	public static AwsS3Codec zstd(int level) {
+		return new Zstd(level);
+	}
+
+	public static AwsS3Codec lz4() {
+		return new Lz4();
+	}
+
+	/**
+	 * Pass-through codec for plain objects; selected by Content-Encoding
+	 * "identity", not by any suffix.
+	 */
+	public static AwsS3Codec none() {
+		return NONE;
+	}
+
+	/**
+	 * The codec registered for the longest suffix of a key, or null if none
+	 * is; by default ".gz", ".zst" and ".lz4" are.
+	 *
+	 * @param path
+	 * @return
+	 */
+	public static AwsS3Codec forSuffix(String path) {
+		AwsS3Codec codec = null;
+		int length = 0;
+		for (Map.Entry<String, AwsS3Codec> e : BY_SUFFIX.entrySet()) {
+			if (e.getKey().length() > length && path.endsWith(e.getKey())) {
+				codec = e.getValue();
+				length = e.getKey().length();
+			}
+		}
+		return codec;
+	}
+
+	/**
+	 * The codec registered for a Content-Encoding header value, or null if
+	 * unknown.
+	 *
+	 * @param contentEncoding
+	 * @return
+	 */
+	public static AwsS3Codec forContentEncoding(String contentEncoding) {
+		if (contentEncoding == null) {
+			return null;
+		}
+		return BY_CONTENT_ENCODING.get(contentEncoding.trim().toLowerCase());
+	}
+
+	/**
+	 * Whether codec is the built-in gzip, which templates replace by one with
+	 * their own compression settings when writing.
+	 */
+	static boolean isGzip(AwsS3Codec codec) {
+		return codec instanceof Gzip;
+	}
+
+	/**
+	 * Decode a stream of unknown format by looking at its magic number; data
+	 * that matches none of the formats is returned as is.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream decodeDetected(InputStream in) throws IOException {
+		BufferedInputStream bis = new BufferedInputStream(in, 65536);
+		bis.mark(4);
+		byte[] magic = new byte[4];
+		int n = 0;
+		for (int r; n < 4 && (r = bis.read(magic, n, 4 - n)) > 0;) {
+			n += r;
+		}
+		bis.reset();
+		if (n >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+			return gunzip(bis);
+		} else if (n == 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5 && (magic[2] & 0xff) == 0x2f
+				&& (magic[3] & 0xff) == 0xfd) {
+			return zstd(DEFAULT_ZSTD_LEVEL).decode(bis);
+		} else if (n == 4 && (magic[0] & 0xff) == 0x04 && (magic[1] & 0xff) == 0x22 && (magic[2] & 0xff) == 0x4d
+				&& (magic[3] & 0xff) == 0x18) {
+			return lz4().decode(bis);
+		}
+		return bis;
+	}
+
+	/**
+	 * Decompress a gzip stream of any number of members, such as those
+	 * written by {@link AwsS3ParallelGzipOutputStream} or
+	 * {@link AwsS3Template#putIndexedList}.
+	 *
+	 * GZIPInputStream alone only reads past the end of a member when the
+	 * underlying stream reports available() &gt; 0, which network streams
+	 * (S3ObjectInputStream among them) often don't: it then stops after an
+	 * arbitrary member, without an error. Here available() looks ahead one
+	 * byte instead, so every member is read.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream gunzip(InputStream in) throws IOException {
+		return new GZIPInputStream(new LookaheadInputStream(in), 65536);
+	}
+
+	/**
+	 * A stream whose available() is non-zero whenever it is not at its end,
+	 * blocking for one byte if it has to.
+	 */
+	private static final class LookaheadInputStream extends PushbackInputStream {
+		LookaheadInputStream(InputStream in) {
+			super(in, 1);
+		}
+
+		@Override
+		public int available() throws IOException {
+			int n = super.available();
+			if (n > 0) {
+				return n;
+			}
+			int b = read();
+			if (b < 0) {
+				return 0;
+			}
+			unread(b);
+			return 1;
+		}
+	}
+
+	private static final class Gzip implements AwsS3Codec {
+		private final int level;
+		private final boolean parallel;
+
+		Gzip(int level, boolean parallel) {
+			this.level = level;
+			this.parallel = parallel;
+		}
+
+		@Override
+		public String getContentEncoding() {
+			return "gzip";
+		}
+
+		@Override
+		public String getSuffix() {
+			return ".gz";
+		}
+
+		@Override
+		public InputStream decode(InputStream in) throws IOException {
+			return gunzip(in);
+		}
+
+		@Override
+		public OutputStream encode(OutputStream out) throws IOException {
+			return parallel ? new AwsS3ParallelGzipOutputStream(out, level)
+					: AwsS3ParallelGzipOutputStream.gzip(out, level);
+		}
+	}
+
+	private static final class Zstd implements AwsS3Codec {
+		private final int level;
+
+		Zstd(int level) {
+			this.level = level;
+		}
+
+		@Override
+		public String getContentEncoding() {
+			return "zstd";
+		}
+
+		@Override
+		public String getSuffix() {
+			return ".zst";
+		}
+
+		@Override
+		public InputStream decode(InputStream in) throws IOException {
+			return ZstdStreams.decode(in);
+		}
+
+		@Override
+		public OutputStream encode(OutputStream out) throws IOException {
+			return ZstdStreams.encode(out, level);
+		}
+	}
+
+	private static final class ZstdStreams {
+		static InputStream decode(InputStream in) throws IOException {
+			return new ZstdInputStream(new BufferedInputStream(in, 65536));
+		}
+
+		static OutputStream encode(OutputStream out, int level) throws IOException {
+			return new ZstdOutputStream(out, level);
+		}
+	}
+
+	private static final class Lz4 implements AwsS3Codec {
+		@Override
+		public String getContentEncoding() {
+			return "lz4";
+		}
+
+		@Override
+		public String getSuffix() {
+			return ".lz4";
+		}
+
+		@Override
+		public InputStream decode(InputStream in) throws IOException {
+			return Lz4Streams.decode(in);
+		}
+
+		@Override
+		public OutputStream encode(OutputStream out) throws IOException {
+			return Lz4Streams.encode(out);
+		}
+	}
+
+	private static final class Lz4Streams {
+		static InputStream decode(InputStream in) throws IOException {
+			return new LZ4FrameInputStream(new BufferedInputStream(in, 65536));
+		}
+
+		static OutputStream encode(OutputStream out) throws IOException {
+			return new LZ4FrameOutputStream(out);
+		}
+	}
+
+	private static final class None implements AwsS3Codec {
+		@Override
+		public String getContentEncoding() {
+			return "identity";
+		}
+
+		@Override
+		public String getSuffix() {
+			return "";
+		}
+
+		@Override
+		public InputStream decode(InputStream in) {
+			return in;
+		}
+
+		@Override
+		public OutputStream encode(OutputStream out) {
+			return out;
+		}
+	}
+}
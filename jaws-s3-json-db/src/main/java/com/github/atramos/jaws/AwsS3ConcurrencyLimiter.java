@@ -0,0 +1,252 @@
+package com.github.atramos.jaws;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+
+/**
+ * AIMD concurrency limit for the S3 requests of one {@link AwsS3Template},
+ * kept per key prefix (the "directory" of the key, or the prefix of a
+ * listing), since that is the unit S3 rate-limits by.
+ *
+ * Requests wait for a permit before they are sent. Each success that finds
+ * the limit in use and with a latency close to the best seen for the prefix
+ * adds 1/limit to it (about +1 per round of requests); a 503 / SlowDown
+ * halves it, at most once per second so that a burst of throttled requests
+ * counts as one signal. Throttles are counted whether or not limiting is
+ * enabled.
+ *
+ * Installed on the template's clients as a request handler, so every request
+ * is covered: reads, writes, multipart parts, ranges and listings.
+ *
+ * At most maxPrefixes prefixes are tracked: beyond that the least recently
+ * used ones without requests in flight are forgotten, down to 90%, and start
+ * over from the initial limit when seen again.
+ */
+public class AwsS3ConcurrencyLimiter extends RequestHandler2 {
+
+	private static final HandlerContextKey<Limit> LIMIT = new HandlerContextKey<>("jaws.limit");
+
+	private static final HandlerContextKey<Long> STARTED = new HandlerContextKey<>("jaws.started");
+
+	private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private static final double LATENCY_TOLERANCE = 3;
+
+	private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+
+	private final AtomicLong throttles = new AtomicLong();
+
+	private volatile boolean enabled;
+
+	private volatile int initialLimit = 16;
+
+	private volatile int maxLimit = 512;
+
+	private volatile int maxPrefixes = 10000;
+
+	public final class Limit {
+		private double limit = initialLimit;
+		private int inFlight;
+		private long throttles;
+		private long lastDecrease;
+		private double baseline = -1;
+		private volatile long lastUsed = System.nanoTime();
+
+		synchronized void acquire() throws InterruptedException {
+			while (inFlight >= (int) limit) {
+				wait();
+			}
+			++inFlight;
+		}
+
+		synchronized void release(long latencyNanos, boolean success) {
+			int used = inFlight--;
+			if (success) {
+				baseline = baseline < 0 || latencyNanos < baseline ? latencyNanos
+						: baseline + (latencyNanos - baseline) * 0.01;
+				if (used >= limit / 2 && latencyNanos <= baseline * LATENCY_TOLERANCE) {
+					limit = Math.min(maxLimit, limit + 1 / limit);
+				}
+			}
+			notifyAll();
+		}
+
+		synchronized void throttled() {
+			++throttles;
+			long now = System.nanoTime();
+			if (now - lastDecrease > DECREASE_INTERVAL) {
+				limit = Math.max(1, limit / 2);
+				lastDecrease = now;
+			}
+		}
+
+		public synchronized int getLimit() {
+			return (int) limit;
+		}
+
+		public synchronized int getInFlight() {
+			return inFlight;
+		}
+
+		public synchronized long getThrottles() {
+			return throttles;
+		}
+	}
+
+	/**
+	 * Make requests wait for a permit; off by default, in which case limits
+	 * and throttles are tracked but nothing waits.
+	 *
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @param initialLimit permits of a prefix not seen before
+	 * @param maxLimit
+	 */
+	public void setLimits(int initialLimit, int maxLimit) {
+		this.initialLimit = initialLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * @param maxPrefixes number of prefixes to keep state for
+	 */
+	public void setMaxPrefixes(int maxPrefixes) {
+		this.maxPrefixes = maxPrefixes;
+	}
+
+	/**
+	 * Current in-flight limit of each prefix tracked.
+	 */
+	public Map<String, Integer> getLimits() {
+		Map<String, Integer> out = new TreeMap<>();
+		limits.forEach((prefix, limit) -> out.put(prefix, limit.getLimit()));
+		return out;
+	}
+
+	/**
+	 * State of one prefix, or null if no request has used it.
+	 */
+	public Limit getLimit(String prefix) {
+		return limits.get(prefix);
+	}
+
+	/**
+	 * Total 503 / SlowDown responses, including those the SDK retried.
+	 */
+	public long getThrottles() {
+		return throttles.get();
+	}
+
+	@Override
+	public void beforeRequest(Request<?> request) {
+		final Limit limit = limit(prefix(request));
+		if (enabled) {
+			try {
+				limit.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AbortedException();
+			}
+			request.addHandlerContext(LIMIT, limit);
+		}
+		request.addHandlerContext(STARTED, System.nanoTime());
+	}
+
+	@Override
+	public void afterAttempt(HandlerAfterAttemptContext context) {
+		Exception e = context.getException();
+		if (e instanceof AmazonServiceException && isThrottle((AmazonServiceException) e)) {
+			throttles.incrementAndGet();
+			limit(prefix(context.getRequest())).throttled();
+		}
+	}
+
+	@Override
+	public void afterResponse(Request<?> request, Response<?> response) {
+		release(request, true);
+	}
+
+	@Override
+	public void afterError(Request<?> request, Response<?> response, Exception e) {
+		release(request, false);
+	}
+
+	private Limit limit(String prefix) {
+		final Limit limit = limits.computeIfAbsent(prefix, k -> new Limit());
+		limit.lastUsed = System.nanoTime();
+		if (limits.size() > maxPrefixes) {
+			trim();
+		}
+		return limit;
+	}
+
+	/**
+	 * Forget least recently used idle prefixes, down to 90% of maxPrefixes.
+	 */
+	private synchronized void trim() {
+		final int excess = limits.size() - (maxPrefixes - maxPrefixes / 10);
+		if (limits.size() <= maxPrefixes || excess <= 0) {
+			return;
+		}
+		// sorted by a snapshot of lastUsed, which keeps changing
+		final Map<String, Long> idle = new HashMap<>();
+		limits.forEach((prefix, limit) -> {
+			if (limit.getInFlight() == 0) {
+				idle.put(prefix, limit.lastUsed);
+			}
+		});
+		List<String> oldest = new ArrayList<>(idle.keySet());
+		oldest.sort(Comparator.comparingLong(idle::get));
+		for (String prefix : oldest.subList(0, Math.min(excess, oldest.size()))) {
+			Limit limit = limits.get(prefix);
+			if (limit != null && limit.lastUsed == idle.get(prefix)) {
+				limits.remove(prefix, limit);
+			}
+		}
+	}
+
+	private void release(Request<?> request, boolean success) {
+		Limit limit = request.getHandlerContext(LIMIT);
+		Long started = request.getHandlerContext(STARTED);
+		if (limit != null) {
+			request.addHandlerContext(LIMIT, null);
+			limit.release(started == null ? 0 : System.nanoTime() - started, success);
+		}
+	}
+
+	private static boolean isThrottle(AmazonServiceException e) {
+		return e.getStatusCode() == 503 || "SlowDown".equals(e.getErrorCode());
+	}
+
+	/**
+	 * The key's "directory", or the prefix parameter of a listing.
+	 */
+	private static String prefix(Request<?> request) {
+		String path = request.getResourcePath();
+		if (path == null || path.isEmpty() || path.equals("/")) {
+			List<String> prefix = request.getParameters().get("prefix");
+			return prefix == null || prefix.isEmpty() ? "" : prefix.get(0);
+		}
+		return path.substring(0, path.lastIndexOf('/') + 1);
+	}
+}
@@ -0,0 +1,50 @@
+package com.github.atramos.jaws;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Describes a dataset written by {@link AwsS3Template#putDataset}: the part
+ * objects under the dataset prefix, with their partition values, record
+ * counts and sizes. Stored as "_manifest.json" under the prefix; Athena skips
+ * files whose names start with an underscore, so the manifest does not
+ * interfere with queries over the parts.
+ */
+public class AwsS3DatasetManifest {
+
+	public static final String NAME = "_manifest.json";
+
+	public List<Part> parts = new ArrayList<>();
+
+	public static class Part {
+
+		public String key;
+
+		/**
+		 * Hive-style partition column values, in directory order; empty for
+		 * unpartitioned datasets.
+		 */
+		public Map<String, String> partition = new LinkedHashMap<>();
+
+		public long records;
+
+		/**
+		 * Compressed size of the part object.
+		 */
+		public long bytes;
+	}
+
+	@JsonIgnore
+	public long getRecords() {
+		return parts.stream().mapToLong(p -> p.records).sum();
+	}
+
+	@JsonIgnore
+	public long getBytes() {
+		return parts.stream().mapToLong(p -> p.bytes).sum();
+	}
+}
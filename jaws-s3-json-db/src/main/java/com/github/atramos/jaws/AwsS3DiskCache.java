@@ -0,0 +1,325 @@
+package com.github.atramos.jaws;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Book-keeping for the local s3-cache directory: an access-time index of the
+ * cached files, hit/miss counters, and least-recently-used eviction once the
+ * total size exceeds a byte budget.
+ *
+ * Files opened through {@link #open(File)} are pinned until their stream is
+ * closed and are never evicted while pinned. Eviction runs on a background
+ * thread, both periodically and whenever a write pushes the cache over
+ * budget, and frees space down to 90% of the budget so that it doesn't run on
+ * every write.
+ *
+ * Directories ending in {@link #FETCHED} or {@link #UNZIPPED} hold the
+ * outputs of gzipFetch() and zipFetch(), which are handed to callers as plain
+ * files; they are never indexed, so never evicted.
+ */
+public class AwsS3DiskCache implements Closeable {
+
+	private static final long EVICTION_INTERVAL_SECONDS = 60;
+
+	static final String FETCHED = "~fetched";
+
+	static final String UNZIPPED = "~unzipped";
+
+	private static final class Entry {
+		volatile long size;
+		volatile long lastAccess;
+		int pins;
+		boolean evicted;
+
+		Entry(long size, long lastAccess) {
+			this.size = size;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final File root;
+
+	private final Map<File, Entry> index = new ConcurrentHashMap<>();
+
+	private final AtomicLong totalBytes = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private volatile long maxBytes = Long.MAX_VALUE;
+
+	private ScheduledThreadPoolExecutor evictor;
+
+	public AwsS3DiskCache(File root) {
+		this.root = root;
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Set the byte budget of the cache directory and start background
+	 * eviction. Files already present on disk are indexed by their
+	 * modification time.
+	 *
+	 * @param maxBytes
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		if (evictor == null && maxBytes < Long.MAX_VALUE) {
+			evictor = new ScheduledThreadPoolExecutor(1, AwsS3Template.daemonThreadFactory("s3-cache-evictor"));
+			evictor.execute(this::scan);
+			evictor.scheduleWithFixedDelay(this::evict, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS,
+					TimeUnit.SECONDS);
+		}
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getSize() {
+		return totalBytes.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	void recordHit(File file) {
+		hits.incrementAndGet();
+		touch(file);
+	}
+
+	void recordMiss() {
+		misses.incrementAndGet();
+	}
+
+	/**
+	 * Register a file that was just written (or rewritten) in the cache.
+	 */
+	void added(File file) {
+		final long size = file.length();
+		final long now = System.currentTimeMillis();
+		Entry entry = index.computeIfAbsent(file, f -> new Entry(0, now));
+		synchronized (entry) {
+			totalBytes.addAndGet(size - entry.size);
+			entry.size = size;
+			entry.lastAccess = now;
+			entry.evicted = false;
+		}
+		if (totalBytes.get() > maxBytes) {
+			scheduleEviction();
+		}
+	}
+
+	/**
+	 * Forget a file that was deleted from the cache by other means.
+	 */
+	void removed(File file) {
+		Entry entry = index.remove(file);
+		if (entry != null) {
+			synchronized (entry) {
+				totalBytes.addAndGet(-entry.size);
+				entry.size = 0;
+			}
+		}
+	}
+
+	/**
+	 * Open a cached file, pinning it against eviction until the returned
+	 * stream is closed.
+	 *
+	 * @param file
+	 * @return
+	 * @throws FileNotFoundException
+	 */
+	InputStream open(File file) throws FileNotFoundException {
+		final Entry entry = index.computeIfAbsent(file, f -> {
+			long size = f.length();
+			totalBytes.addAndGet(size);
+			return new Entry(size, System.currentTimeMillis());
+		});
+		synchronized (entry) {
+			entry.pins++;
+			entry.lastAccess = System.currentTimeMillis();
+		}
+		try {
+			return new FileInputStream(file) {
+				private boolean closed;
+
+				@Override
+				public void close() throws IOException {
+					super.close();
+					if (!closed) {
+						closed = true;
+						synchronized (entry) {
+							entry.pins--;
+						}
+					}
+				}
+			};
+		} catch (FileNotFoundException e) {
+			synchronized (entry) {
+				entry.pins--;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Pin a cached file against eviction until the returned handle is
+	 * closed. Files that are not in the cache are not tracked.
+	 *
+	 * @param file
+	 * @return
+	 */
+	Closeable pin(File file) {
+		final Entry entry = index.get(file);
+		if (entry == null) {
+			return () -> {
+			};
+		}
+		synchronized (entry) {
+			entry.pins++;
+		}
+		return new Closeable() {
+			private boolean closed;
+
+			@Override
+			public void close() {
+				synchronized (entry) {
+					if (!closed) {
+						closed = true;
+						entry.pins--;
+					}
+				}
+			}
+		};
+	}
+
+	private void touch(File file) {
+		Entry entry = index.get(file);
+		if (entry != null) {
+			entry.lastAccess = System.currentTimeMillis();
+		}
+	}
+
+	private synchronized void scheduleEviction() {
+		if (evictor != null && evictor.getQueue().size() < 2) {
+			evictor.execute(this::evict);
+		}
+	}
+
+	/**
+	 * Delete least-recently-used, unpinned files until the cache is below
+	 * 90% of its budget.
+	 */
+	void evict() {
+		if (totalBytes.get() <= maxBytes) {
+			return;
+		}
+		final long target = maxBytes - maxBytes / 10;
+		List<Map.Entry<File, Entry>> candidates = new ArrayList<>(index.entrySet());
+		candidates.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+		for (Map.Entry<File, Entry> candidate : candidates) {
+			if (totalBytes.get() <= target) {
+				break;
+			}
+			final Entry entry = candidate.getValue();
+			synchronized (entry) {
+				if (entry.pins > 0 || entry.evicted) {
+					continue;
+				}
+				if (candidate.getKey().delete() || !candidate.getKey().exists()) {
+					entry.evicted = true;
+					index.remove(candidate.getKey(), entry);
+					totalBytes.addAndGet(-entry.size);
+					evictions.incrementAndGet();
+					logger.fine("evicted " + candidate.getKey());
+				}
+			}
+		}
+		logger.info("s3-cache: " + totalBytes.get() + " of " + maxBytes + " bytes used after eviction");
+	}
+
+	private void scan() {
+		if (!root.isDirectory()) {
+			return;
+		}
+		try {
+			Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					final String name = dir.toString();
+					return name.endsWith(FETCHED) || name.endsWith(UNZIPPED) ? FileVisitResult.SKIP_SUBTREE
+							: FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					// temps, locks and mirror manifests are not cached objects
+					final String name = file.toString();
+					if (attrs.isRegularFile() && !name.endsWith("~temp") && !name.endsWith("~lock")
+							&& !name.endsWith("~mirror")) {
+						index.computeIfAbsent(file.toFile(), f -> {
+							totalBytes.addAndGet(attrs.size());
+							return new Entry(attrs.size(), attrs.lastModifiedTime().toMillis());
+						});
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "failed to scan " + root, e);
+		}
+		evict();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (evictor != null) {
+			evictor.shutdownNow();
+			evictor = null;
+		}
+	}
+}
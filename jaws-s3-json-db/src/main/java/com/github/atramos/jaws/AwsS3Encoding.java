@@ -0,0 +1,150 @@
+package com.github.atramos.jaws;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Record encoding of lists written by {@link AwsS3Template#putList}:
+ *
+ * <ul>
+ * <li>JSON - one JSON document per line, the default and the only encoding
+ * Athena reads</li>
+ * <li>SMILE - binary JSON, requires
+ * com.fasterxml.jackson.dataformat:jackson-dataformat-smile</li>
+ * <li>CBOR - binary JSON (RFC 7049), already on the classpath of the AWS
+ * SDK</li>
+ * </ul>
+ *
+ * Binary records are framed as a 4 byte big-endian length followed by the
+ * encoded record. Every record starts with the Smile header or the CBOR
+ * self-describe tag, so readers tell the three encodings apart from the
+ * first bytes of the (decompressed) object.
+ */
+public enum AwsS3Encoding {
+
+	JSON, SMILE, CBOR;
+
+	/**
+	 * Peek at the start of a decompressed list to find its encoding; the
+	 * stream is left at its current position.
+	 */
+	static AwsS3Encoding detect(BufferedInputStream in) throws IOException {
+		byte[] head = new byte[7];
+		in.mark(head.length);
+		int n = 0;
+		for (int r; n < head.length && (r = in.read(head, n, head.length - n)) > 0;) {
+			n += r;
+		}
+		in.reset();
+		if (n == head.length) {
+			if (head[4] == ':' && head[5] == ')' && head[6] == '\n') {
+				return SMILE;
+			} else if ((head[4] & 0xff) == 0xd9 && (head[5] & 0xff) == 0xd9 && (head[6] & 0xff) == 0xf7) {
+				return CBOR;
+			}
+		}
+		return JSON;
+	}
+
+	/**
+	 * The parser/generator factory of a binary encoding. Each encoding lives
+	 * in its own holder class, so the optional Smile module is only loaded
+	 * when Smile is used.
+	 */
+	JsonFactory factory() {
+		switch (this) {
+		case SMILE:
+			return Smile.FACTORY;
+		case CBOR:
+			return Cbor.FACTORY;
+		default:
+			throw new IllegalStateException("JSON is not a framed encoding");
+		}
+	}
+
+	/**
+	 * Write one length-prefixed binary record.
+	 */
+	void writeRecord(ObjectWriter writer, OutputStream out, Object value) throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+		try (JsonGenerator gen = factory().createGenerator(record)) {
+			writer.writeValue(gen, value);
+		}
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(record.size());
+		record.writeTo(out);
+	}
+
+	/**
+	 * Iterate over the length-prefixed binary records of a stream. The stream
+	 * must end between records; a truncated length prefix or record fails
+	 * with an EOFException rather than passing for the end of the list.
+	 */
+	<T> Iterator<T> readRecords(ObjectReader reader, InputStream in) {
+		final DataInputStream dis = new DataInputStream(in);
+		return new Iterator<T>() {
+
+			private byte[] next;
+
+			@Override
+			public boolean hasNext() {
+				if (next == null) {
+					try {
+						int first = dis.read();
+						if (first < 0) {
+							return false;
+						}
+						int length = first << 24 | dis.readUnsignedByte() << 16 | dis.readUnsignedByte() << 8
+								| dis.readUnsignedByte();
+						if (length < 0) {
+							throw new IOException("corrupt record length " + length);
+						}
+						next = new byte[length];
+						dis.readFully(next);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				try (JsonParser parser = factory().createParser(next)) {
+					return reader.readValue(parser);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				} finally {
+					next = null;
+				}
+			}
+		};
+	}
+
+	private static class Smile {
+		static final JsonFactory FACTORY = new SmileFactory();
+	}
+
+	private static class Cbor {
+		static final JsonFactory FACTORY = new CBORFactory().enable(CBORGenerator.Feature.WRITE_TYPE_HEADER);
+	}
+}
@@ -12,6 +12,11 @@ public class AwsS3FetchParams {
 	
 	public boolean nonexistentAsNull;
 
+	public long freshnessTtl;
+
+	/** Download even if the cached copy looks current. */
+	boolean forceDownload;
+
 	public AwsS3FetchParams(String path) {
 		this.path = path;
 	}
@@ -47,4 +52,17 @@ public class AwsS3FetchParams {
 		nonexistentAsNull = true;
 		return this;
 	}
+
+	/**
+	 * Serve the locally cached copy without contacting S3 if it was
+	 * downloaded or revalidated by this process less than the given number of
+	 * milliseconds ago.
+	 * 
+	 * @param millis
+	 * @return
+	 */
+	public AwsS3FetchParams withFreshnessTtl(long millis) {
+		freshnessTtl = millis;
+		return this;
+	}
 }
\ No newline at end of file
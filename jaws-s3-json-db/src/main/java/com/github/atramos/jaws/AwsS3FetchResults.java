@@ -0,0 +1,33 @@
+package com.github.atramos.jaws;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of {@link AwsS3Template#fetchAll(java.util.Collection, int)}, per
+ * key, in the order the keys were given.
+ */
+public class AwsS3FetchResults {
+
+	/**
+	 * Cache file of each key fetched or revalidated. The value is null for
+	 * keys that do not exist when nonexistentAsNull was requested, and for
+	 * cached keys when cachedObjecReturnsNull was requested.
+	 */
+	public final Map<String, File> files = new LinkedHashMap<>();
+
+	/**
+	 * Keys that could not be fetched, with the reason.
+	 */
+	public final Map<String, Throwable> failures = new LinkedHashMap<>();
+
+	public boolean isComplete() {
+		return failures.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "fetched=" + files.size() + ", failed=" + failures.size();
+	}
+}
@@ -0,0 +1,249 @@
+package com.github.atramos.jaws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Writes a list object record by record, in the same format as
+ * {@link AwsS3Template#putList(String, Class, java.util.Collection)}, without
+ * holding the list in memory. Records are serialized and compressed as they
+ * are written; every time partSize compressed bytes have accumulated they are
+ * sent as one part of a multipart upload while later records are still
+ * being produced, so memory stays bounded by the part size and the number of
+ * parts in flight. The compressed bytes are also written to a temp file that
+ * becomes the cache file of the key.
+ *
+ * {@link #commit()} uploads the last part and completes the upload: the
+ * object appears in S3 all at once, or not at all. Objects smaller than one
+ * part are sent with a single PUT. {@link #close()} without a commit aborts
+ * the upload and discards everything, so a producer that throws inside
+ * try-with-resources leaves nothing behind:
+ *
+ * <pre>
+ * try (AwsS3ListWriter&lt;Row&gt; out = s3.openListWriter("rows.json.gz", Row.class)) {
+ * 	for (Row row : rows) {
+ * 		out.write(row);
+ * 	}
+ * 	out.commit();
+ * }
+ * </pre>
+ *
+ * Not thread-safe.
+ */
+public class AwsS3ListWriter<T> implements Closeable {
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final AwsS3Template s3;
+
+	private final String path;
+
+	private final ObjectWriter writer;
+
+	private final AwsS3Encoding encoding;
+
+	private final long partSize;
+
+	private final Path temp;
+
+	private final FileOutputStream cacheOut;
+
+	private final ByteArrayOutputStream part = new ByteArrayOutputStream();
+
+	private final OutputStream out;
+
+	private AwsS3MultipartUpload upload;
+
+	private long records;
+
+	private long bytes;
+
+	private boolean failed;
+
+	private boolean closed;
+
+	AwsS3ListWriter(AwsS3Template s3, String path, ObjectWriter writer, AwsS3Encoding encoding,
+			AwsS3Codec codec, long partSize) throws IOException {
+		this.s3 = s3;
+		this.path = path;
+		this.writer = writer;
+		this.encoding = encoding;
+		this.partSize = partSize;
+		final Path cacheFile = s3.cacheLocation(path).toPath();
+		Files.createDirectories(cacheFile.getParent());
+		this.temp = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName() + "~w", "~temp");
+		this.cacheOut = new FileOutputStream(temp.toFile());
+		this.out = codec.encode(new PartOutputStream());
+	}
+
+	/**
+	 * Append one record. Blocks while the maximum number of parts are being
+	 * uploaded.
+	 *
+	 * @param record
+	 */
+	public void write(T record) {
+		if (closed) {
+			throw new IllegalStateException("closed: " + path);
+		}
+		try {
+			if (encoding == AwsS3Encoding.JSON) {
+				out.write(writer.writeValueAsBytes(record));
+				out.write('\n');
+			} else {
+				encoding.writeRecord(writer, out, record);
+			}
+			++records;
+		} catch (IOException e) {
+			failed = true;
+			throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Compressed bytes produced so far.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Discard what was written. Same as close() without commit().
+	 */
+	public void abort() {
+		failed = true;
+		close();
+	}
+
+	/**
+	 * Complete the upload and install the cache file. If a write failed, the
+	 * writer is discarded and IllegalStateException is thrown instead.
+	 */
+	public void commit() {
+		if (closed) {
+			throw new IllegalStateException("closed: " + path);
+		}
+		if (failed) {
+			close();
+			throw new IllegalStateException("a write failed, nothing committed: " + path);
+		}
+		closed = true;
+		try {
+			out.close(); // writes the codec trailer into the last part
+			cacheOut.close();
+			if (upload == null) {
+				s3.upload(path, part.toByteArray());
+			} else {
+				flushPart();
+				upload.complete();
+			}
+		} catch (IOException e) {
+			discard();
+			throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			discard();
+			throw e;
+		}
+		// the object is in S3 now: failing to install the cache file only
+		// costs a download later
+		try {
+			s3.listWritten(path, temp);
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.WARNING, "could not cache " + path, e);
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException e2) {
+				// best effort
+			}
+		}
+	}
+
+	/**
+	 * Discard everything unless {@link #commit()} was called.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		discard();
+	}
+
+	private void discard() {
+		failed = true;
+		if (upload != null) {
+			upload.abort();
+		}
+		try {
+			out.close(); // releases the codec, its output is dropped
+			cacheOut.close();
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			// best effort
+		}
+	}
+
+	private void flushPart() {
+		if (part.size() == 0) {
+			return;
+		}
+		if (upload == null) {
+			upload = s3.multipartUpload(path);
+		}
+		// the upload keeps the array until the part is sent
+		upload.uploadPart(part.toByteArray(), 0, part.size());
+		part.reset();
+	}
+
+	/**
+	 * Receives the compressed stream: tees it to the cache temp file and cuts
+	 * it into parts.
+	 */
+	private class PartOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (failed) {
+				return;
+			}
+			cacheOut.write(b, off, len);
+			bytes += len;
+			while (len > 0) {
+				int n = (int) Math.min(len, partSize - part.size());
+				part.write(b, off, n);
+				off += n;
+				len -= n;
+				if (part.size() >= partSize) {
+					flushPart();
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			// the part buffer is sent by AwsS3ListWriter.close()
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package com.github.atramos.jaws;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Keeps the local s3-cache copy of a prefix in sync with S3.
+ *
+ * Each {@link #sync()} lists the prefix and compares ETags with a manifest of
+ * the last sync, persisted next to the cached files, so restarts don't
+ * download everything again. New and changed objects are fetched
+ * concurrently into the usual cache locations (see
+ * {@link AwsS3Template#cacheLocation(String)}); local copies of deleted
+ * objects are removed. Listeners receive the keys that changed, so in-process
+ * caches can be refreshed incrementally. Files evicted from the disk cache are
+ * fetched again on the next sync.
+ *
+ * <pre>
+ * AwsS3Mirror mirror = new AwsS3Mirror(s3, "models/");
+ * mirror.addListener(changes -&gt; reload(changes.added, changes.changed));
+ * mirror.start(5, TimeUnit.MINUTES);
+ * </pre>
+ */
+public class AwsS3Mirror implements Closeable {
+
+	private static ObjectMapper om = new ObjectMapper();
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final AwsS3Template s3;
+
+	private final String prefix;
+
+	private final File manifestFile;
+
+	private final List<Consumer<Changes>> listeners = new CopyOnWriteArrayList<>();
+
+	private Map<String, Entry> manifest;
+
+	private volatile ScheduledThreadPoolExecutor poller;
+
+	/**
+	 * State of one mirrored object as of the last sync.
+	 */
+	static class Entry {
+		public String etag;
+
+		public long lastModified;
+
+		public long size;
+	}
+
+	/**
+	 * Keys that changed in one sync.
+	 */
+	public static class Changes {
+		public final List<String> added = new ArrayList<>();
+
+		public final List<String> changed = new ArrayList<>();
+
+		public final List<String> removed = new ArrayList<>();
+
+		public boolean isEmpty() {
+			return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return "added=" + added.size() + ", changed=" + changed.size() + ", removed=" + removed.size();
+		}
+	}
+
+	public AwsS3Mirror(AwsS3Template s3, String prefix) {
+		this.s3 = s3;
+		this.prefix = prefix;
+		this.manifestFile = new File(s3.cacheLocation(prefix).getPath() + "~mirror");
+	}
+
+	public void addListener(Consumer<Changes> listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Local copy of a mirrored key.
+	 */
+	public File getLocalFile(String key) {
+		return s3.cacheLocation(key);
+	}
+
+	/**
+	 * Bring the local copy up to date. Objects that fail to download are
+	 * left out of the manifest and retried by the next sync; the first
+	 * failure is rethrown once the others are done.
+	 *
+	 * @return the keys that changed
+	 */
+	public synchronized Changes sync() {
+		long started = System.currentTimeMillis();
+		final Map<String, Entry> previous = manifest();
+		final Map<String, S3ObjectSummary> remote = new HashMap<>();
+		try (Stream<List<S3ObjectSummary>> pages = s3.streamKeys(prefix)) {
+			pages.forEach(page -> page.forEach(summary -> remote.put(summary.getKey(), summary)));
+		}
+
+		final Changes changes = new Changes();
+		final Map<String, Entry> next = new HashMap<>();
+		final Map<String, CompletableFuture<File>> downloads = new HashMap<>();
+		for (S3ObjectSummary summary : remote.values()) {
+			final String key = summary.getKey();
+			if (key.endsWith("/")) {
+				continue; // folder placeholder
+			}
+			final Entry known = previous.get(key);
+			final Entry current = entry(summary);
+			if (known != null && known.etag.equals(current.etag) && getLocalFile(key).exists()) {
+				next.put(key, known);
+				continue;
+			}
+			(known == null ? changes.added : changes.changed).add(key);
+			// the listing says the local copy is not current: a conditional GET
+			// against the file's timestamp could still answer 304
+			final AwsS3FetchParams fetch = new AwsS3FetchParams(key);
+			fetch.forceDownload = true;
+			downloads.put(key, s3.supplyAsync(() -> s3.fetchToCache(fetch), 0, TimeUnit.SECONDS));
+			next.put(key, current);
+		}
+		for (String key : previous.keySet()) {
+			if (!remote.containsKey(key)) {
+				s3.dropCached(key);
+				changes.removed.add(key);
+			}
+		}
+
+		RuntimeException failure = null;
+		for (Map.Entry<String, CompletableFuture<File>> download : downloads.entrySet()) {
+			try {
+				download.getValue().join();
+				verify(download.getKey(), next);
+			} catch (CompletionException e) {
+				logger.log(Level.WARNING, "mirror: failed to fetch " + download.getKey(), e.getCause());
+				next.remove(download.getKey());
+				changes.added.remove(download.getKey());
+				changes.changed.remove(download.getKey());
+				if (failure == null) {
+					failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+				}
+			}
+		}
+
+		manifest = next;
+		saveManifest();
+		logger.info("mirrored s3://" + s3.getBucket() + "/" + prefix + ": " + changes + " in "
+				+ (System.currentTimeMillis() - started) / 1000.0 + "s");
+		if (!changes.isEmpty()) {
+			for (Consumer<Changes> listener : listeners) {
+				listener.accept(changes);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return changes;
+	}
+
+	/**
+	 * Sync now and then periodically on a background thread. Failed syncs are
+	 * logged and retried at the next interval.
+	 *
+	 * @param interval
+	 * @param unit
+	 */
+	public synchronized void start(long interval, TimeUnit unit) {
+		if (poller != null) {
+			throw new IllegalStateException("already started");
+		}
+		poller = new ScheduledThreadPoolExecutor(1, AwsS3Template.daemonThreadFactory("s3-mirror"));
+		poller.scheduleWithFixedDelay(() -> {
+			try {
+				sync();
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "mirror sync failed: s3://" + s3.getBucket() + "/" + prefix, e);
+			}
+		}, 0, interval, unit);
+	}
+
+	/**
+	 * Stop polling. The mirrored files are kept.
+	 */
+	@Override
+	public void close() {
+		ScheduledThreadPoolExecutor p = poller;
+		poller = null;
+		if (p != null) {
+			p.shutdownNow();
+		}
+	}
+
+	/**
+	 * Record in the manifest the ETag of what was actually fetched, which
+	 * differs from the listed one if the object changed again in between.
+	 * If it is not known, e.g. because another process fetched the file, the
+	 * key is left out so the next sync fetches it again.
+	 */
+	private void verify(String key, Map<String, Entry> next) {
+		final String etag = s3.cachedEtag(key);
+		final Entry listed = next.get(key);
+		if (etag == null) {
+			next.remove(key);
+		} else if (!etag.equals(listed.etag)) {
+			logger.fine("mirror: " + key + " changed while syncing");
+			Entry fetched = new Entry();
+			fetched.etag = etag;
+			fetched.lastModified = listed.lastModified;
+			fetched.size = getLocalFile(key).length();
+			next.put(key, fetched);
+		}
+	}
+
+	private static Entry entry(S3ObjectSummary summary) {
+		Entry e = new Entry();
+		e.etag = summary.getETag();
+		e.lastModified = summary.getLastModified() == null ? 0 : summary.getLastModified().getTime();
+		e.size = summary.getSize();
+		return e;
+	}
+
+	private Map<String, Entry> manifest() {
+		if (manifest == null) {
+			manifest = Collections.emptyMap();
+			if (manifestFile.exists()) {
+				try {
+					manifest = om.readValue(manifestFile, new TypeReference<Map<String, Entry>>() {
+					});
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "ignoring unreadable mirror manifest " + manifestFile, e);
+				}
+			}
+		}
+		return manifest;
+	}
+
+	private void saveManifest() {
+		try {
+			Files.createDirectories(manifestFile.toPath().getParent());
+			Path temp = Files.createTempFile(manifestFile.toPath().getParent(), manifestFile.getName(), "~temp");
+			try {
+				om.writeValue(temp.toFile(), manifest);
+				Files.move(temp, manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package com.github.atramos.jaws;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * A single S3 multipart upload whose parts are sent concurrently on a shared
+ * executor. At most maxInFlight parts are queued or running at once, which
+ * bounds both the load on the executor and, for in-memory parts, the heap.
+ * Each part is retried independently, unless S3 rejected it with a 4xx
+ * status other than 429; if any part ultimately fails the whole
+ * upload is aborted so that no orphaned parts are left behind.
+ */
+class AwsS3MultipartUpload {
+
+	/** S3 rejects parts smaller than this, except for the last one. */
+	static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final AmazonS3 s3;
+
+	private final String bucket;
+
+	private final String key;
+
+	private final String uploadId;
+
+	private final ExecutorService executor;
+
+	private final Semaphore inFlight;
+
+	private final int maxRetries;
+
+	private final List<Future<PartETag>> parts = new ArrayList<>();
+
+	private long bytes;
+
+	private boolean aborted;
+
+	AwsS3MultipartUpload(AmazonS3 s3, String bucket, String key, ObjectMetadata meta,
+			ExecutorService executor, int maxInFlight, int maxRetries) {
+		this.s3 = s3;
+		this.bucket = bucket;
+		this.key = key;
+		this.executor = executor;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.maxRetries = maxRetries;
+		this.uploadId = s3.initiateMultipartUpload(
+				new InitiateMultipartUploadRequest(bucket, key, meta)).getUploadId();
+	}
+
+	/**
+	 * Upload the first length bytes of an open file, split in parts of the
+	 * given size. Parts are read from the channel, not from the file's path,
+	 * so renaming or deleting the path meanwhile does not affect the upload.
+	 *
+	 * @return the ETag of the object
+	 */
+	static String uploadFile(AmazonS3 s3, String bucket, String key, ObjectMetadata meta, FileChannel file,
+			long length, long partSize, ExecutorService executor, int maxInFlight, int maxRetries) {
+		AwsS3MultipartUpload upload
+				= new AwsS3MultipartUpload(s3, bucket, key, meta, executor, maxInFlight, maxRetries);
+		try {
+			for (long offset = 0; offset < length; offset += partSize) {
+				upload.uploadPart(file, offset, Math.min(partSize, length - offset));
+			}
+			return upload.complete();
+		} catch (RuntimeException e) {
+			upload.abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Upload all of a byte array, split in parts of the given size.
+	 */
+	static void uploadBytes(AmazonS3 s3, String bucket, String key, ObjectMetadata meta, byte[] data,
+			long partSize, ExecutorService executor, int maxInFlight, int maxRetries) {
+		AwsS3MultipartUpload upload
+				= new AwsS3MultipartUpload(s3, bucket, key, meta, executor, maxInFlight, maxRetries);
+		try {
+			for (long offset = 0; offset < data.length; offset += partSize) {
+				upload.uploadPart(data, (int) offset, (int) Math.min(partSize, data.length - offset));
+			}
+			upload.complete();
+		} catch (RuntimeException e) {
+			upload.abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Queue the next part, read from a region of an open file. Blocks while
+	 * maxInFlight parts are pending.
+	 */
+	void uploadPart(FileChannel file, long offset, long size) {
+		submit(size, () -> new UploadPartRequest()
+				.withInputStream(regionInputStream(file, offset, size))
+				.withPartSize(size));
+	}
+
+	/**
+	 * A stream over a region of a channel, using positional reads so that
+	 * several of them can share the channel. Closing it leaves the channel
+	 * open.
+	 */
+	static InputStream regionInputStream(FileChannel file, long offset, long size) {
+		return new InputStream() {
+			private long position = offset;
+
+			private final long end = offset + size;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (position >= end) {
+					return -1;
+				}
+				int n = file.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+				if (n < 0) {
+					throw new EOFException("file shrank below " + end + " bytes");
+				}
+				position += n;
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return (int) Math.min(Integer.MAX_VALUE, end - position);
+			}
+		};
+	}
+
+	/**
+	 * Queue the next part from memory. The array must not be modified until
+	 * the upload completes. Blocks while maxInFlight parts are pending.
+	 */
+	void uploadPart(byte[] data, int offset, int size) {
+		submit(size, () -> new UploadPartRequest()
+				.withInputStream(new ByteArrayInputStream(data, offset, size))
+				.withPartSize(size));
+	}
+
+	int getPartCount() {
+		return parts.size();
+	}
+
+	private void submit(long size, Supplier<UploadPartRequest> request) {
+		final int partNumber = parts.size() + 1;
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		bytes += size;
+		try {
+			parts.add(executor.submit(() -> {
+				try {
+					return uploadWithRetry(partNumber, request);
+				} finally {
+					inFlight.release();
+				}
+			}));
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	private PartETag uploadWithRetry(int partNumber, Supplier<UploadPartRequest> request) throws InterruptedException {
+		for (int attempt = 0;; ++attempt) {
+			try {
+				UploadPartRequest req = request.get().withBucketName(bucket).withKey(key)
+						.withUploadId(uploadId).withPartNumber(partNumber);
+				return s3.uploadPart(req).getPartETag();
+			} catch (SdkClientException e) {
+				if (attempt >= maxRetries || !isRetryable(e)) {
+					throw e;
+				}
+				logger.log(Level.WARNING, "retrying part " + partNumber + " of s3://" + bucket + "/" + key, e);
+				Thread.sleep(100L << attempt);
+			}
+		}
+	}
+
+	/**
+	 * Network errors, 5xx and throttling are worth another attempt; other
+	 * 4xx responses, such as 403 or 404 (upload gone), will not change.
+	 */
+	private static boolean isRetryable(SdkClientException e) {
+		if (!(e instanceof AmazonServiceException)) {
+			return true;
+		}
+		AmazonServiceException ase = (AmazonServiceException) e;
+		return ase.getStatusCode() < 400 || ase.getStatusCode() >= 500 || ase.getStatusCode() == 429
+				|| "RequestTimeout".equals(ase.getErrorCode());
+	}
+
+	/**
+	 * Wait for all parts and stitch them into the final object. Aborts the
+	 * upload if any part failed.
+	 *
+	 * @return the ETag of the object
+	 */
+	String complete() {
+		List<PartETag> etags = new ArrayList<>(parts.size());
+		try {
+			for (Future<PartETag> part : parts) {
+				etags.add(part.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			abort();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			abort();
+			throw new RuntimeException("multipart upload of s3://" + bucket + "/" + key + " failed", e.getCause());
+		}
+		String etag = s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags))
+				.getETag();
+		logger.fine("completed " + etags.size() + " parts (" + bytes + " bytes) to s3://" + bucket + "/" + key);
+		return etag;
+	}
+
+	/**
+	 * Cancel pending parts and discard the parts already stored by S3.
+	 */
+	synchronized void abort() {
+		if (aborted) {
+			return;
+		}
+		aborted = true;
+		for (Future<PartETag> part : parts) {
+			part.cancel(true);
+		}
+		try {
+			s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+		} catch (SdkClientException e) {
+			logger.log(Level.WARNING, "failed to abort multipart upload of s3://" + bucket + "/" + key, e);
+		}
+	}
+}
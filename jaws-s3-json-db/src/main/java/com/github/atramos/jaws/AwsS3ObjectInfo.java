@@ -0,0 +1,57 @@
+package com.github.atramos.jaws;
+
+import java.io.File;
+import java.util.Date;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * What is known about the S3 object behind a cache file as of the last time
+ * it was downloaded or revalidated.
+ *
+ * The entry only describes the cache file if that file still has the
+ * modification time and length recorded here; a file rewritten locally or by
+ * another process invalidates it.
+ */
+class AwsS3ObjectInfo {
+
+	final String etag;
+
+	final Date lastModified;
+
+	final String contentEncoding;
+
+	final long validatedAt;
+
+	final long fileTime;
+
+	final long fileLength;
+
+	private AwsS3ObjectInfo(String etag, Date lastModified, String contentEncoding, long validatedAt,
+			long fileTime, long fileLength) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.contentEncoding = contentEncoding;
+		this.validatedAt = validatedAt;
+		this.fileTime = fileTime;
+		this.fileLength = fileLength;
+	}
+
+	static AwsS3ObjectInfo of(ObjectMetadata meta, File cacheFile) {
+		return new AwsS3ObjectInfo(meta.getETag(), meta.getLastModified(), meta.getContentEncoding(),
+				System.currentTimeMillis(), cacheFile.lastModified(), cacheFile.length());
+	}
+
+	AwsS3ObjectInfo revalidated() {
+		return new AwsS3ObjectInfo(etag, lastModified, contentEncoding, System.currentTimeMillis(), fileTime,
+				fileLength);
+	}
+
+	boolean describes(File cacheFile) {
+		return cacheFile.lastModified() == fileTime && cacheFile.length() == fileLength;
+	}
+
+	boolean isFresh(long ttl) {
+		return System.currentTimeMillis() - validatedAt < ttl;
+	}
+}
@@ -0,0 +1,159 @@
+package com.github.atramos.jaws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * pigz-style gzip compression on multiple cores: the input is cut in blocks
+ * that are compressed independently on a fork-join pool, and each block is
+ * written as a complete gzip member, in order.
+ *
+ * Concatenated gzip members are a valid gzip file (RFC 1952), readable by
+ * the gzip tool, Athena and {@link AwsS3Codecs#gunzip(java.io.InputStream)}.
+ * A bare GZIPInputStream may stop after the first members when reading from
+ * a network stream, see gunzip(). The number of blocks in flight is bounded,
+ * so memory stays at a few blocks regardless of input size.
+ */
+public class AwsS3ParallelGzipOutputStream extends FilterOutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	private final int level;
+
+	private final ForkJoinPool pool;
+
+	private final int maxPending;
+
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+	private byte[] block;
+
+	private int count;
+
+	private boolean empty = true;
+
+	private boolean closed;
+
+	public AwsS3ParallelGzipOutputStream(OutputStream out, int level) {
+		this(out, level, DEFAULT_BLOCK_SIZE, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param out
+	 * @param level deflate level, 0-9 or -1 for the default
+	 * @param blockSize uncompressed bytes per gzip member
+	 * @param pool runs the compression tasks
+	 */
+	public AwsS3ParallelGzipOutputStream(OutputStream out, int level, int blockSize, ForkJoinPool pool) {
+		super(out);
+		this.level = level;
+		this.pool = pool;
+		this.maxPending = 2 * pool.getParallelism() + 1;
+		this.block = new byte[blockSize];
+	}
+
+	/**
+	 * A plain single-threaded GZIPOutputStream with the given deflate level.
+	 */
+	static GZIPOutputStream gzip(OutputStream out, int level) throws IOException {
+		return new GZIPOutputStream(out, 65536) {
+			{
+				def.setLevel(level);
+			}
+		};
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == block.length) {
+			submitBlock();
+		}
+		block[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == block.length) {
+				submitBlock();
+			}
+			int n = Math.min(len, block.length - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes out the blocks compressed so far; the current partial block is
+	 * kept to avoid emitting tiny members.
+	 */
+	@Override
+	public void flush() throws IOException {
+		while (!pending.isEmpty()) {
+			writeNext();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (count > 0 || empty) { // an empty input still needs one member to be valid gzip
+				submitBlock();
+			}
+			flush();
+		} finally {
+			for (Future<byte[]> f : pending) {
+				f.cancel(false);
+			}
+			out.close();
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] data = block;
+		final int length = count;
+		pending.add(pool.submit(() -> compress(data, length)));
+		block = new byte[data.length];
+		count = 0;
+		empty = false;
+		while (pending.size() >= maxPending) {
+			writeNext();
+		}
+	}
+
+	private byte[] compress(byte[] data, int length) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 4 + 64);
+		try (GZIPOutputStream gzo = gzip(baos, level)) {
+			gzo.write(data, 0, length);
+		}
+		return baos.toByteArray();
+	}
+
+	private void writeNext() throws IOException {
+		try {
+			out.write(pending.peek().get());
+			pending.poll();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+}
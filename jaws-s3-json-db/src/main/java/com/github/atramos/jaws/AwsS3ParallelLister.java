@@ -0,0 +1,298 @@
+package com.github.atramos.jaws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterators.AbstractSpliterator;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Lists a prefix as several key ranges ("shards") concurrently. Shards come
+ * from the sub-prefixes found with a delimiter, or from split points given by
+ * the caller. Pages are handed to the consumer as they arrive, either in key
+ * order or in arrival order.
+ *
+ * Each listing runs on its own pool, so a slow consumer blocks listing
+ * threads only, never the template's shared executors. Discovery runs on that
+ * pool too and starts each shard as soon as it is found; keys found directly
+ * under the prefix are passed on page by page, so a flat prefix is streamed
+ * rather than collected. In ordered mode every shard has its own small queue;
+ * because the pool is FIFO and shards are started in key order, the shard the
+ * consumer waits for is always running.
+ */
+class AwsS3ParallelLister {
+
+	private static final int QUEUED_PAGES = 4;
+
+	private final AmazonS3 s3;
+
+	private final String bucket;
+
+	private final boolean ordered;
+
+	private final ThreadPoolExecutor pool;
+
+	/** Ordered mode: direct keys and shard queues, in key order. */
+	private final BlockingQueue<Page> sequence;
+
+	/** Unordered mode: pages of every shard and of discovery. */
+	private final BlockingQueue<Page> shared;
+
+	private final AtomicInteger started = new AtomicInteger();
+
+	private AwsS3ParallelLister(AmazonS3 s3, String bucket, int concurrency, boolean ordered) {
+		this.s3 = s3;
+		this.bucket = bucket;
+		this.ordered = ordered;
+		this.pool = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), AwsS3Template.daemonThreadFactory("s3-list"));
+		this.sequence = ordered ? new ArrayBlockingQueue<>(QUEUED_PAGES) : null;
+		this.shared = ordered ? null : new ArrayBlockingQueue<>(QUEUED_PAGES * concurrency);
+	}
+
+	/**
+	 * Shards by sub-prefix: listing with the delimiter finds the sub-prefixes,
+	 * keys directly under prefix are returned from that listing. Needs a
+	 * concurrency of at least 2.
+	 */
+	static Stream<List<S3ObjectSummary>> byDelimiter(AmazonS3 s3, String bucket, String prefix, String delimiter,
+			int concurrency, boolean ordered) {
+		AwsS3ParallelLister lister = new AwsS3ParallelLister(s3, bucket, concurrency, ordered);
+		return lister.start(() -> lister.discover(prefix, delimiter));
+	}
+
+	/**
+	 * Shards by key range: (-inf, splits[0]], (splits[0], splits[1]], ...,
+	 * (splits[n-1], +inf), all restricted to prefix. Splits are relative to
+	 * the prefix: with prefix "data/", split "8" divides the keys at
+	 * "data/8". Needs a concurrency of at least 2.
+	 */
+	static Stream<List<S3ObjectSummary>> bySplits(AmazonS3 s3, String bucket, String prefix, List<String> splits,
+			int concurrency, boolean ordered) {
+		AwsS3ParallelLister lister = new AwsS3ParallelLister(s3, bucket, concurrency, ordered);
+		List<String> sorted = new ArrayList<>(splits);
+		Collections.sort(sorted);
+		return lister.start(() -> {
+			String from = null;
+			for (String split : sorted) {
+				lister.startShard(new Shard(prefix, from, prefix + split));
+				from = prefix + split;
+			}
+			lister.startShard(new Shard(prefix, from, null));
+		});
+	}
+
+	private interface Discovery {
+		void run() throws InterruptedException;
+	}
+
+	private void discover(String prefix, String delimiter) throws InterruptedException {
+		final ListObjectsV2Request req = new ListObjectsV2Request()
+				.withBucketName(bucket).withPrefix(prefix).withDelimiter(delimiter);
+		ListObjectsV2Result result;
+		do {
+			result = s3.listObjectsV2(req);
+			// keys and sub-prefixes of the page merged in key order; a key sorts
+			// either before or after every key under a sub-prefix, so order is
+			// kept
+			final TreeMap<String, Object> entries = new TreeMap<>();
+			for (S3ObjectSummary summary : result.getObjectSummaries()) {
+				entries.put(summary.getKey(), summary);
+			}
+			for (String commonPrefix : result.getCommonPrefixes()) {
+				entries.put(commonPrefix, commonPrefix);
+			}
+			List<S3ObjectSummary> direct = new ArrayList<>();
+			for (Object entry : entries.values()) {
+				if (entry instanceof S3ObjectSummary) {
+					direct.add((S3ObjectSummary) entry);
+				} else {
+					if (!direct.isEmpty()) {
+						emit(direct);
+						direct = new ArrayList<>();
+					}
+					startShard(new Shard((String) entry, null, null));
+				}
+			}
+			if (!direct.isEmpty()) {
+				emit(direct);
+			}
+			req.setContinuationToken(result.getNextContinuationToken());
+		} while (result.isTruncated());
+	}
+
+	/**
+	 * Pass on keys found by discovery, after the shards started so far.
+	 */
+	private void emit(List<S3ObjectSummary> summaries) throws InterruptedException {
+		(ordered ? sequence : shared).put(new Page(summaries, null, null));
+	}
+
+	/**
+	 * Start listing a shard; in ordered mode its pages come after what was
+	 * emitted so far.
+	 */
+	private void startShard(Shard shard) throws InterruptedException {
+		final BlockingQueue<Page> queue = ordered ? new ArrayBlockingQueue<>(QUEUED_PAGES) : shared;
+		started.incrementAndGet();
+		pool.execute(() -> list(shard, queue));
+		if (ordered) {
+			sequence.put(new Page(null, null, queue));
+		}
+	}
+
+	private Stream<List<S3ObjectSummary>> start(Discovery discovery) {
+		pool.execute(() -> {
+			RuntimeException error = null;
+			try {
+				discovery.run();
+			} catch (InterruptedException | RejectedExecutionException e) {
+				return; // the stream was closed
+			} catch (RuntimeException e) {
+				error = e;
+			} finally {
+				pool.shutdown(); // shards already started still run
+			}
+			try {
+				(ordered ? sequence : shared).put(new Page(null, error, null));
+			} catch (InterruptedException e) {
+				// the stream was closed
+			}
+		});
+
+		return StreamSupport.stream(new AbstractSpliterator<List<S3ObjectSummary>>(Long.MAX_VALUE, 0) {
+
+			/** Ordered mode: the shard being read. */
+			BlockingQueue<Page> current;
+
+			/** Unordered mode: end marks received, from discovery and shards. */
+			int ended;
+
+			boolean done;
+
+			@Override
+			public boolean tryAdvance(Consumer<? super List<S3ObjectSummary>> action) {
+				try {
+					while (!done) {
+						Page page;
+						if (!ordered) {
+							page = shared.take();
+						} else if (current != null) {
+							page = current.take();
+						} else {
+							page = sequence.take();
+							if (page.shard != null) {
+								current = page.shard;
+								continue;
+							}
+						}
+						if (page.summaries != null) {
+							action.accept(page.summaries);
+							return true;
+						}
+						page.rethrow();
+						if (ordered) {
+							// end of the current shard, or of discovery
+							done = current == null;
+							current = null;
+						} else {
+							// discovery ends after starting every shard
+							done = ++ended == started.get() + 1;
+						}
+					}
+					return false;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+			}
+		}, false).onClose(pool::shutdownNow);
+	}
+
+	private void list(Shard shard, BlockingQueue<Page> queue) {
+		RuntimeException error = null;
+		try {
+			final ListObjectsV2Request req = new ListObjectsV2Request()
+					.withBucketName(bucket).withPrefix(shard.prefix).withStartAfter(shard.startAfter);
+			boolean done;
+			do {
+				ListObjectsV2Result result = s3.listObjectsV2(req);
+				List<S3ObjectSummary> page = result.getObjectSummaries();
+				done = !result.isTruncated();
+				if (shard.last != null) {
+					int cut = 0;
+					while (cut < page.size() && page.get(cut).getKey().compareTo(shard.last) <= 0) {
+						++cut;
+					}
+					if (cut < page.size()) {
+						page = page.subList(0, cut);
+						done = true;
+					}
+				}
+				if (!page.isEmpty()) {
+					queue.put(new Page(page, null, null));
+				}
+				req.setContinuationToken(result.getNextContinuationToken());
+			} while (!done);
+		} catch (InterruptedException e) {
+			return; // the stream was closed
+		} catch (RuntimeException e) {
+			error = e;
+		}
+		try {
+			queue.put(new Page(null, error, null));
+		} catch (InterruptedException e) {
+			// the stream was closed
+		}
+	}
+
+	private static class Shard {
+		final String prefix;
+		final String startAfter;
+		final String last;
+
+		Shard(String prefix, String startAfter, String last) {
+			this.prefix = prefix;
+			this.startAfter = startAfter;
+			this.last = last;
+		}
+	}
+
+	/**
+	 * A page of keys, the queue of a shard that starts at this point of the
+	 * ordered sequence, or the end of a shard or of discovery (summaries and
+	 * shard null), possibly with the error that ended it.
+	 */
+	private static class Page {
+		final List<S3ObjectSummary> summaries;
+		final RuntimeException error;
+		final BlockingQueue<Page> shard;
+
+		Page(List<S3ObjectSummary> summaries, RuntimeException error, BlockingQueue<Page> shard) {
+			this.summaries = summaries;
+			this.error = error;
+			this.shard = shard;
+		}
+
+		void rethrow() {
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+}
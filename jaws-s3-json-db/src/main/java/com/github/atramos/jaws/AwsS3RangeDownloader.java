@@ -0,0 +1,139 @@
+package com.github.atramos.jaws;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * Downloads an S3 object into a local file. Objects above a threshold are
+ * split in byte ranges that are fetched concurrently and written straight to
+ * their position in the file.
+ *
+ * The caller's initial GET doubles as the first range, so small objects still
+ * cost a single request; the remaining ranges are pinned to the ETag of that
+ * response so a concurrent overwrite in S3 cannot produce a mixed file.
+ */
+class AwsS3RangeDownloader {
+
+	private static final Logger logger = Logger.getLogger(AwsS3RangeDownloader.class.getName());
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * @param s3 client used for the additional range requests
+	 * @param first the response of a plain (non-ranged) GET of the object
+	 * @param target file to write, created or truncated
+	 * @param rangeThreshold objects larger than this are fetched in ranges
+	 * @param rangeSize size of each range
+	 * @param executor runs the range requests
+	 * @param maxRetries retries per range
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	static long download(AmazonS3 s3, S3Object first, File target, long rangeThreshold, long rangeSize,
+			ExecutorService executor, int maxRetries) throws IOException {
+		final long length = first.getObjectMetadata().getContentLength();
+		final S3ObjectInputStream content = first.getObjectContent();
+		try (FileChannel ch = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			if (length <= rangeThreshold) {
+				copy(content, ch, 0, length);
+				return length;
+			}
+
+			final String etag = first.getObjectMetadata().getETag();
+			final List<Future<?>> ranges = new ArrayList<>();
+			try {
+				for (long offset = rangeSize; offset < length; offset += rangeSize) {
+					final long start = offset;
+					final long end = Math.min(offset + rangeSize, length) - 1;
+					ranges.add(executor.submit(() -> {
+						downloadRange(s3, first.getBucketName(), first.getKey(), etag, ch, start, end, maxRetries);
+						return null;
+					}));
+				}
+
+				// the initial response streams the first range on the calling thread;
+				// it is the whole object if the range size exceeds the threshold
+				copy(content, ch, 0, Math.min(rangeSize, length));
+				content.abort();
+
+				for (Future<?> range : ranges) {
+					range.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw new IOException("ranged download of s3://" + first.getBucketName() + "/"
+						+ first.getKey() + " failed", e.getCause());
+			} finally {
+				for (Future<?> range : ranges) {
+					range.cancel(true);
+				}
+			}
+			logger.fine("fetched s3://" + first.getBucketName() + "/" + first.getKey() + " in "
+					+ (ranges.size() + 1) + " ranges");
+			return length;
+		}
+	}
+
+	private static void downloadRange(AmazonS3 s3, String bucket, String key, String etag, FileChannel ch,
+			long start, long end, int maxRetries) throws IOException, InterruptedException {
+		for (int attempt = 0;; ++attempt) {
+			try {
+				S3Object s3o = s3.getObject(new GetObjectRequest(bucket, key).withRange(start, end)
+						.withMatchingETagConstraint(etag));
+				if (s3o == null) {
+					throw new IOException("s3://" + bucket + "/" + key + " changed during download");
+				}
+				try (InputStream is = s3o.getObjectContent()) {
+					copy(is, ch, start, end - start + 1);
+				}
+				return;
+			} catch (SdkClientException | EOFException e) {
+				if (attempt >= maxRetries) {
+					throw e;
+				}
+				logger.log(Level.WARNING, "retrying range " + start + "-" + end + " of s3://" + bucket + "/" + key, e);
+				Thread.sleep(100L << attempt);
+			}
+		}
+	}
+
+	/**
+	 * Copy exactly length bytes from the stream to the given file position.
+	 */
+	static void copy(InputStream is, FileChannel ch, long position, long length) throws IOException {
+		final byte[] buf = new byte[BUFFER_SIZE];
+		long written = 0;
+		while (written < length) {
+			int n = is.read(buf, 0, (int) Math.min(buf.length, length - written));
+			if (n < 0) {
+				throw new EOFException("expected " + length + " bytes, got " + written);
+			}
+			ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+			while (bb.hasRemaining()) {
+				written += ch.write(bb, position + written);
+			}
+		}
+	}
+}
@@ -0,0 +1,439 @@
+package com.github.atramos.jaws;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Tail-latency policy for the GETs of {@link AwsS3Template}: hedging and
+ * jittered retries, both off by default.
+ *
+ * <p>
+ * Hedging: when a GET has not returned its response headers after the hedge
+ * delay, an identical second GET is sent, and whichever answers first is used
+ * (the other one is aborted). The delay is either fixed or a percentile of the
+ * recently observed latencies, e.g. 0.95 hedges the slowest 5% of requests.
+ *
+ * <p>
+ * Retries: 5xx responses and SlowDown are retried with "full jitter"
+ * exponential backoff, on top of the SDK's own retry policy.
+ *
+ * <p>
+ * Hedges and retries both draw from a retry budget, refilled by a fraction of
+ * each successful request, so that extra load stays bounded (about 10% with
+ * the default ratio) even when S3 is struggling.
+ */
+public class AwsS3RequestPolicy implements Closeable {
+
+	private static final int LATENCY_SAMPLES = 1024;
+
+	private static final int MIN_SAMPLES = 32;
+
+	private static final double MAX_BUDGET = 10;
+
+	private long hedgeDelay;
+
+	private double hedgePercentile;
+
+	private int maxRetries;
+
+	private long retryBaseDelay = 50;
+
+	private long retryMaxDelay = 5000;
+
+	private double budgetRatio = 0.1;
+
+	private double budget = MAX_BUDGET;
+
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+
+	private long samples;
+
+	private long percentileDelay = -1;
+
+	private int maxThreads = AwsS3ClientRegistry.DEFAULT_MAX_CONNECTIONS;
+
+	private ThreadPoolExecutor pool;
+
+	private boolean closed;
+
+	private final AtomicLong hedges = new AtomicLong();
+
+	private final AtomicLong hedgeWins = new AtomicLong();
+
+	private final AtomicLong retries = new AtomicLong();
+
+	private final AtomicLong budgetExhausted = new AtomicLong();
+
+	/**
+	 * Hedge GETs that take longer than this; also used with a percentile
+	 * until enough latencies have been observed. 0 disables hedging.
+	 *
+	 * @param millis
+	 */
+	public void setHedgeDelay(long millis) {
+		this.hedgeDelay = millis;
+	}
+
+	/**
+	 * Hedge GETs slower than this percentile (0-1) of recent GETs. 0 for a
+	 * fixed delay only.
+	 *
+	 * @param percentile
+	 */
+	public void setHedgePercentile(double percentile) {
+		this.hedgePercentile = percentile;
+	}
+
+	/**
+	 * @param maxRetries retries of 5xx / SlowDown responses, 0 to leave
+	 *            retries to the SDK
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Retry n waits a random time up to min(max, base * 2^n).
+	 *
+	 * @param baseMillis
+	 * @param maxMillis
+	 */
+	public void setRetryDelay(long baseMillis, long maxMillis) {
+		this.retryBaseDelay = baseMillis;
+		this.retryMaxDelay = maxMillis;
+	}
+
+	/**
+	 * Extra requests (hedges and retries) allowed per successful request.
+	 *
+	 * @param ratio
+	 */
+	public void setBudgetRatio(double ratio) {
+		this.budgetRatio = ratio;
+	}
+
+	/**
+	 * Threads that run hedged requests, primary and backup; no more GETs
+	 * than this are hedged at once, the others run unhedged on the caller's
+	 * thread. Defaults to the maximum number of connections.
+	 *
+	 * @param maxThreads
+	 */
+	public synchronized void setMaxThreads(int maxThreads) {
+		this.maxThreads = maxThreads;
+		if (pool != null) {
+			if (maxThreads < pool.getCorePoolSize()) {
+				pool.setCorePoolSize(maxThreads);
+			}
+			pool.setMaximumPoolSize(maxThreads);
+		}
+	}
+
+	public long getHedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * Hedged requests that answered before the original one.
+	 */
+	public long getHedgeWins() {
+		return hedgeWins.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Hedges and retries not sent because the budget was used up.
+	 */
+	public long getBudgetExhausted() {
+		return budgetExhausted.get();
+	}
+
+	/**
+	 * Run a request under this policy.
+	 *
+	 * @param request sends the request; called again for hedges and retries
+	 * @param discard releases the result of a hedged request that lost the
+	 *            race
+	 * @return
+	 */
+	<T> T execute(Supplier<T> request, Consumer<T> discard) {
+		for (int attempt = 0;; attempt++) {
+			try {
+				long delay = hedgeDelay();
+				T result = delay > 0 ? hedged(request, discard, delay) : timed(request);
+				succeeded();
+				return result;
+			} catch (AmazonServiceException e) {
+				if (attempt >= maxRetries || !isRetryable(e) || !tryAcquireBudget()) {
+					throw e;
+				}
+				retries.incrementAndGet();
+				sleep(ThreadLocalRandom.current().nextLong(
+						Math.min(retryMaxDelay, retryBaseDelay << Math.min(attempt, 30)) + 1));
+			}
+		}
+	}
+
+	private <T> T hedged(Supplier<T> request, Consumer<T> discard, long delay) {
+		final Attempt<T> primary = start(request, discard);
+		if (primary == null) {
+			return timed(request); // every hedging thread is busy
+		}
+		try {
+			return primary.future.get(delay, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// slow: hedge below
+		} catch (InterruptedException e) {
+			primary.abandon();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw rethrow(e.getCause());
+		}
+		if (!tryAcquireBudget()) {
+			return await(primary.future, primary);
+		}
+		final Attempt<T> backup = startBackup(request, discard);
+		if (backup == null) {
+			refund();
+			return await(primary.future, primary);
+		}
+		hedges.incrementAndGet();
+
+		// first success wins and abandons the other, failure only if both fail
+		final CompletableFuture<T> winner = new CompletableFuture<>();
+		final AtomicInteger failures = new AtomicInteger();
+		final AtomicReference<Attempt<T>> first = new AtomicReference<>();
+		for (Attempt<T> attempt : Arrays.asList(primary, backup)) {
+			attempt.future.whenComplete((result, error) -> {
+				if (error == null) {
+					if (first.compareAndSet(null, attempt)) {
+						winner.complete(result);
+						(attempt == primary ? backup : primary).abandon();
+					} else {
+						discard.accept(result);
+					}
+				} else if (failures.incrementAndGet() == 2) {
+					winner.completeExceptionally(error);
+				}
+			});
+		}
+		T result = await(winner, primary, backup);
+		if (first.get() == backup) {
+			hedgeWins.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Run a request on the hedging pool, or return null if all its threads
+	 * are busy.
+	 *
+	 * @throws IllegalStateException if the policy is closed
+	 */
+	private <T> Attempt<T> start(Supplier<T> request, Consumer<T> discard) {
+		Attempt<T> attempt = new Attempt<>(request, discard);
+		try {
+			pool().execute(attempt);
+			return attempt;
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Like start(), but a policy closed since the primary started only means
+	 * no backup: the primary is left to finish.
+	 */
+	private <T> Attempt<T> startBackup(Supplier<T> request, Consumer<T> discard) {
+		try {
+			return start(request, discard);
+		} catch (IllegalStateException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Wait for a result; if the caller is interrupted the attempts are
+	 * abandoned, so their requests are aborted and their results released.
+	 */
+	@SafeVarargs
+	private static <T> T await(CompletableFuture<T> future, Attempt<T>... attempts) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			for (Attempt<T> attempt : attempts) {
+				attempt.abandon();
+			}
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw rethrow(e.getCause());
+		}
+	}
+
+	/**
+	 * One request running on the hedging pool. Abandoning it interrupts the
+	 * request, which makes the SDK abort it, and discards its result if it
+	 * produces one anyway.
+	 */
+	private final class Attempt<T> implements Runnable {
+
+		final CompletableFuture<T> future = new CompletableFuture<>();
+
+		private final Supplier<T> request;
+
+		private final Consumer<T> discard;
+
+		private Thread thread;
+
+		private boolean abandoned;
+
+		Attempt(Supplier<T> request, Consumer<T> discard) {
+			this.request = request;
+			this.discard = discard;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (abandoned) {
+					return;
+				}
+				thread = Thread.currentThread();
+			}
+			try {
+				T result = timed(request);
+				if (!future.complete(result)) {
+					discard.accept(result);
+				}
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			} finally {
+				synchronized (this) {
+					thread = null;
+					Thread.interrupted(); // don't leak an abandon() into the pool
+				}
+			}
+		}
+
+		void abandon() {
+			future.cancel(false);
+			synchronized (this) {
+				abandoned = true;
+				if (thread != null) {
+					thread.interrupt();
+				}
+			}
+		}
+	}
+
+	private <T> T timed(Supplier<T> request) {
+		long started = System.nanoTime();
+		T result = request.get();
+		record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+		return result;
+	}
+
+	private synchronized void record(long millis) {
+		latencies[(int) (samples++ % LATENCY_SAMPLES)] = millis;
+		if (samples % MIN_SAMPLES == 0) {
+			percentileDelay = -1;
+		}
+	}
+
+	private synchronized long hedgeDelay() {
+		if (hedgePercentile > 0 && samples >= MIN_SAMPLES) {
+			if (percentileDelay < 0) {
+				long[] sorted = Arrays.copyOf(latencies, (int) Math.min(samples, LATENCY_SAMPLES));
+				Arrays.sort(sorted);
+				percentileDelay = Math.max(1, sorted[(int) Math.min(sorted.length - 1, sorted.length * hedgePercentile)]);
+			}
+			return percentileDelay;
+		}
+		return hedgeDelay;
+	}
+
+	private synchronized void succeeded() {
+		budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+	}
+
+	private synchronized void refund() {
+		budget = Math.min(MAX_BUDGET, budget + 1);
+	}
+
+	private synchronized boolean tryAcquireBudget() {
+		if (budget < 1) {
+			budgetExhausted.incrementAndGet();
+			return false;
+		}
+		budget -= 1;
+		return true;
+	}
+
+	private static boolean isRetryable(AmazonServiceException e) {
+		return e.getStatusCode() >= 500 || "SlowDown".equals(e.getErrorCode());
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		throw new RuntimeException(t);
+	}
+
+	private synchronized ThreadPoolExecutor pool() {
+		if (closed) {
+			throw new IllegalStateException("request policy is closed");
+		}
+		if (pool == null) {
+			// no queue: a request is hedged right away or not at all
+			pool = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+					AwsS3Template.daemonThreadFactory("s3-hedge"));
+		}
+		return pool;
+	}
+
+	/**
+	 * Stop the hedging threads. Hedged requests fail with
+	 * IllegalStateException afterwards.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+}
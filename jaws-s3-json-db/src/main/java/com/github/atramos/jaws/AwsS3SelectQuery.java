@@ -0,0 +1,124 @@
+package com.github.atramos.jaws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.amazonaws.services.s3.model.CSVInput;
+import com.amazonaws.services.s3.model.CompressionType;
+import com.amazonaws.services.s3.model.FileHeaderInfo;
+import com.amazonaws.services.s3.model.InputSerialization;
+import com.amazonaws.services.s3.model.JSONInput;
+import com.amazonaws.services.s3.model.JSONType;
+
+/**
+ * Parameters of an S3 Select query: which object, which columns, which rows.
+ * The object is referred to by the alias {@code s} in the where clause, e.g.
+ * {@code new AwsS3SelectQuery(path).withColumns("id", "name").withWhere("s.state = 'MA'")}.
+ */
+public class AwsS3SelectQuery {
+
+	public enum Format {
+		JSON_LINES, CSV
+	}
+
+	public String path;
+
+	public List<String> columns = new ArrayList<>();
+
+	public String where;
+
+	public int limit;
+
+	public Format format = Format.JSON_LINES;
+
+	public boolean gzip = true;
+
+	public AwsS3SelectQuery(String path) {
+		this.path = path;
+	}
+
+	/**
+	 * Project these columns (fields) instead of whole records.
+	 *
+	 * @param columns
+	 * @return
+	 */
+	public AwsS3SelectQuery withColumns(Collection<String> columns) {
+		this.columns = new ArrayList<>(columns);
+		return this;
+	}
+
+	public AwsS3SelectQuery withColumns(String... columns) {
+		return withColumns(Arrays.asList(columns));
+	}
+
+	/**
+	 * SQL predicate evaluated by S3, e.g. {@code s.amount > 100}.
+	 *
+	 * @param where
+	 * @return
+	 */
+	public AwsS3SelectQuery withWhere(String where) {
+		this.where = where;
+		return this;
+	}
+
+	/**
+	 * Stop after this many records.
+	 *
+	 * @param limit
+	 * @return
+	 */
+	public AwsS3SelectQuery withLimit(int limit) {
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * Read a CSV object whose first line holds the column names.
+	 *
+	 * @return
+	 */
+	public AwsS3SelectQuery withCsv() {
+		this.format = Format.CSV;
+		return this;
+	}
+
+	/**
+	 * Set to false for uncompressed objects.
+	 *
+	 * @param gzip
+	 * @return
+	 */
+	public AwsS3SelectQuery withGzip(boolean gzip) {
+		this.gzip = gzip;
+		return this;
+	}
+
+	String toSql() {
+		StringBuilder sql = new StringBuilder("select ");
+		sql.append(columns.isEmpty() ? "*" : columns.stream().map(c -> "s." + c).collect(Collectors.joining(", ")));
+		sql.append(" from S3Object s");
+		if (where != null && !where.isEmpty()) {
+			sql.append(" where ").append(where);
+		}
+		if (limit > 0) {
+			sql.append(" limit ").append(limit);
+		}
+		return sql.toString();
+	}
+
+	InputSerialization toInputSerialization() {
+		InputSerialization inputSerialization = new InputSerialization();
+		if (format == Format.CSV) {
+			inputSerialization.setCsv(new CSVInput().withFileHeaderInfo(FileHeaderInfo.USE));
+		} else {
+			inputSerialization.setJson(new JSONInput().withType(JSONType.LINES));
+		}
+		inputSerialization.setCompressionType(gzip ? CompressionType.GZIP : CompressionType.NONE);
+		return inputSerialization;
+	}
+}
@@ -0,0 +1,63 @@
+package com.github.atramos.jaws;
+
+/**
+ * Byte counts reported by S3 while a select query runs. Progress events
+ * update the counts as the result stream is consumed; the final stats event
+ * arrives once the stream has been read to the end.
+ */
+public class AwsS3SelectStats {
+
+	private volatile long bytesScanned;
+
+	private volatile long bytesProcessed;
+
+	private volatile long bytesReturned;
+
+	private volatile boolean complete;
+
+	/**
+	 * Bytes of the (possibly compressed) object read by S3.
+	 */
+	public long getBytesScanned() {
+		return bytesScanned;
+	}
+
+	/**
+	 * Uncompressed bytes evaluated by the query.
+	 */
+	public long getBytesProcessed() {
+		return bytesProcessed;
+	}
+
+	/**
+	 * Bytes of query results sent back.
+	 */
+	public long getBytesReturned() {
+		return bytesReturned;
+	}
+
+	/**
+	 * True once the final counts have been received.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	void update(Long scanned, Long processed, Long returned, boolean complete) {
+		if (scanned != null) {
+			bytesScanned = scanned;
+		}
+		if (processed != null) {
+			bytesProcessed = processed;
+		}
+		if (returned != null) {
+			bytesReturned = returned;
+		}
+		this.complete |= complete;
+	}
+
+	@Override
+	public String toString() {
+		return "scanned=" + bytesScanned + ", processed=" + bytesProcessed + ", returned=" + bytesReturned;
+	}
+}
@@ -1,7 +1,9 @@
 package com.github.atramos.jaws;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -9,49 +11,84 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.Spliterators.AbstractSpliterator;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.Deflater;
 
-import com.amazonaws.SdkClientException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.regions.DefaultAwsRegionProviderChain;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.CompressionType;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.amazonaws.services.s3.model.ExpressionType;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.InputSerialization;
-import com.amazonaws.services.s3.model.JSONInput;
 import com.amazonaws.services.s3.model.JSONOutput;
-import com.amazonaws.services.s3.model.JSONType;
 import com.amazonaws.services.s3.model.ListObjectsV2Request;
 import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.OutputSerialization;
+import com.amazonaws.services.s3.model.Progress;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.SelectObjectContentEvent;
+import com.amazonaws.services.s3.model.SelectObjectContentEventVisitor;
 import com.amazonaws.services.s3.model.SelectObjectContentRequest;
 import com.amazonaws.services.s3.model.SelectObjectContentResult;
+import com.amazonaws.services.s3.model.Stats;
 import com.amazonaws.util.IOUtils;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonParseException;
@@ -59,12 +96,13 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.util.StdDateFormat;
 
-public class AwsS3Template {
+public class AwsS3Template implements Closeable {
 
 	private Logger logger = Logger.getLogger(getClass().getName());
 
@@ -76,26 +114,122 @@ public class AwsS3Template {
 
         private ObjectMapper objectMapper;
 
+	private ClientConfiguration clientConfiguration
+			= AwsS3ClientRegistry.defaultClientConfiguration();
+
+	private AwsS3ClientRegistry clientRegistry;
+
+	private boolean closed;
+
+	private volatile int maxTrackedObjects = 100000;
+
+	private final Map<String, AwsS3ObjectInfo> objectInfo = lruMap(() -> maxTrackedObjects);
+
+	private final Map<String, Long> missingUntil = lruMap(() -> maxTrackedObjects);
+
+	private final Map<String, CompletableFuture<Boolean>> cacheFills = new ConcurrentHashMap<>();
+
+	private long existenceCacheTtl;
+
+	private final AwsS3DiskCache diskCache
+			= new AwsS3DiskCache(new File(System.getProperty("java.io.tmpdir"), "s3-cache"));
+
+	private long multipartThreshold = 64L * 1024 * 1024;
+
+	private long partSize = 16L * 1024 * 1024;
+
+	private long rangeThreshold = 64L * 1024 * 1024;
+
+	private int transferConcurrency = 8;
+
+	private int partRetries = 3;
+
+	private ThreadPoolExecutor transferExecutor;
+
+	private boolean decompressedCache;
+
+	private int asyncConcurrency = 16;
+
+	private long asyncTimeout;
+
+	private AwsS3AsyncExecutor asyncExecutor;
+
+	private AwsS3AsyncExecutor datasetExecutor;
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	private boolean parallelCompression;
+
+	private AwsS3Encoding encoding = AwsS3Encoding.JSON;
+
+	private int listConcurrency = 1;
+
+	private volatile AwsS3WriteBehind writeBehind;
+
+	/** Held while the write-behind queue is replaced. */
+	private final Object writeBehindLock = new Object();
+
+	private final AwsS3RequestPolicy requestPolicy = new AwsS3RequestPolicy();
+
+	private final AwsS3ConcurrencyLimiter concurrencyLimiter = new AwsS3ConcurrencyLimiter();
+
+	private static final long LOCK_POLL_INTERVAL = 50;
+
+	private static final String DOWNLOAD_TEMP = "~dl";
+
+	public static final int INDEX_BLOCK_SIZE = 64 * 1024;
+
+	private static final int MAX_BLOCK_INDEXES = 1000;
+
+	private final Map<String, LoadedIndex> blockIndexes = lruMap(() -> MAX_BLOCK_INDEXES);
+
 	public String getBucket() {
 		return bucket;
 	}
 
 	public String gzipRead(String path, boolean skipStaleCheck) {
-		byte[] b = fetch(
+		return gzipRead(
 				new AwsS3FetchParams(path).withSkipStaleCheck(skipStaleCheck));
-		ByteArrayInputStream bais = new ByteArrayInputStream(b);
+	}
+
+	public String gzipRead(AwsS3FetchParams params) {
 		try {
-			return IOUtils.toString(new GZIPInputStream(bais));
+			if (decompressedCache && !params.noSave) {
+				File cacheFile = refreshCacheFile(getClient(), params);
+				if (cacheFile == null) {
+					return null;
+				}
+				ByteBuffer mapped = mapDecompressed(readCodec(params.path), cacheFile);
+				if (mapped == null) {
+					throw new RuntimeException("s3://" + bucket + "/" + params.path
+							+ " decompresses to more than 2 GB, too large for a String; use gzipStream()");
+				}
+				return StandardCharsets.UTF_8.decode(mapped).toString();
+			}
+			try (InputStream is = openDecompressed(params)) {
+				return is == null ? null : IOUtils.toString(is);
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	public String gzipRead(AwsS3FetchParams params) {
-		byte[] b = fetch(params);
-		ByteArrayInputStream bais = new ByteArrayInputStream(b);
+	/**
+	 * Return a read-only view of the decompressed contents of a compressed
+	 * object, memory-mapped from a decompressed copy kept next to the cache
+	 * file. Repeated calls skip both the download and the decompression as
+	 * long as the cached object is current.
+	 * 
+	 * @param params
+	 * @return the decompressed contents, or null if the cached object is
+	 *         current and params.cachedObjecReturnsNull is set, or if the
+	 *         decompressed contents are over 2 GB and can't be mapped in one
+	 *         buffer (read those with gzipStream())
+	 */
+	public ByteBuffer gzipMap(AwsS3FetchParams params) {
 		try {
-			return IOUtils.toString(new GZIPInputStream(bais));
+			File cacheFile = refreshCacheFile(getClient(), params);
+			return cacheFile == null ? null : mapDecompressed(readCodec(params.path), cacheFile);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -103,24 +237,34 @@ public class AwsS3Template {
 
 	/**
 	 * Retrieve and unzip a file from S3, returning the path to the local copy.
+	 * The copy, named like the object without its compression suffix, is
+	 * kept in a "~fetched" directory of the cache that eviction skips: it
+	 * belongs to the caller, and stays until deleted or replaced by the next
+	 * gzipFetch() of the same path.
 	 * 
 	 * @throws IOException
 	 * 
 	 */
 	public Path gzipFetch(String path,
 			boolean skipStaleCheck) throws IOException {
-		final byte[] b = fetch(
-				new AwsS3FetchParams(path).withSkipStaleCheck(skipStaleCheck));
-		final Path cached
-				= cacheLocation(path.replaceAll("\\.gz$", "")).toPath();
-		final ByteArrayInputStream bais = new ByteArrayInputStream(b);
-		final GZIPInputStream gzis = new GZIPInputStream(bais);
-		Files.write(cached, IOUtils.toByteArray(gzis));
+		final String name = path.substring(path.lastIndexOf('/') + 1).replaceAll("\\.(gz|zst|lz4)$", "");
+		final Path cached = cacheLocation(path + AwsS3DiskCache.FETCHED).toPath().resolve(name);
+		Files.createDirectories(cached.getParent());
+		try (InputStream is = openDecompressed(
+				new AwsS3FetchParams(path).withSkipStaleCheck(skipStaleCheck))) {
+			Files.copy(is, cached, StandardCopyOption.REPLACE_EXISTING);
+		}
 		return cached;
 	}
 
 	/**
-	 * Similar to gzipFetch but works at a folder level (zip file)
+	 * Similar to gzipFetch but works at a folder level (zip file). The
+	 * archive is streamed to the local cache, then its entries are extracted
+	 * concurrently; files already extracted by a previous call are kept if
+	 * their size and CRC still match. The extracted directory ends in
+	 * "~unzipped" and is skipped by eviction, as a whole: it belongs to the
+	 * caller, and stays until deleted or refreshed by the next zipFetch() of
+	 * the same path.
 	 * 
 	 * @param path
 	 * @param skipStaleCheck
@@ -129,181 +273,579 @@ public class AwsS3Template {
 	 */
 	public Path zipFetch(String path,
 			boolean skipStaleCheck) throws IOException {
-		final byte[] b = fetch(
+		final File archive = refreshCacheFile(getClient(),
 				new AwsS3FetchParams(path).withSkipStaleCheck(skipStaleCheck));
-		final Path cached
-				= cacheLocation(path.replaceAll("\\.zip$", "")).toPath();
-
-		if (cached.toFile().isFile()) {
-			cached.toFile().delete();
-		}
-		if (!cached.toFile().exists()) {
-			cached.toFile().mkdirs();
-		}
-
-		final ByteArrayInputStream bais = new ByteArrayInputStream(b);
-
-		ZipInputStream zis = new ZipInputStream(bais);
-		ZipEntry zipEntry = zis.getNextEntry();
-		while (zipEntry != null) {
-			String fileName = zipEntry.getName();
-			logger.fine("Unzip: " + fileName);
-			File newFile = new File(cached + File.separator + fileName);
-			try (FileOutputStream fos = new FileOutputStream(newFile)) {
-				IOUtils.copy(zis, fos);
-			}
-			zipEntry = zis.getNextEntry();
-		}
-		zis.closeEntry();
-		zis.close();
+		final Path cached = cacheLocation(path + AwsS3DiskCache.UNZIPPED).toPath();
+		AwsS3ZipExtractor.extract(archive.toPath(), cached, transferExecutor());
 		return cached;
 	}
 
 	public InputStream gzipStream(String path, boolean skipStaleCheck) {
 		try {
-			byte[] b = fetch(new AwsS3FetchParams(path)
+			return openDecompressed(new AwsS3FetchParams(path)
 					.withSkipStaleCheck(skipStaleCheck));
-			ByteArrayInputStream bais = new ByteArrayInputStream(b);
-			return new GZIPInputStream(bais);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
 	
+	public List<JsonNode> select(String path, Collection<String> columns) {
+		return select(getClient(), path, columns);
+	}
+
 	public List<JsonNode> select(AmazonS3Client s3, String path, Collection<String> columns) {
-		
-		final String columnExpression = columns.stream().map(c -> "s." + c).collect(Collectors.joining(", "));
+		try (Stream<JsonNode> stream = select(s3, new AwsS3SelectQuery(path).withColumns(columns),
+				JsonNode.class, new AwsS3SelectStats())) {
+			return stream.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Run an S3 Select query, filtering and projecting on the S3 side, and
+	 * decode the matching records lazily as the stream is consumed. The
+	 * stream must be closed to release the connection.
+	 * 
+	 * @param query
+	 * @param cls
+	 * @return
+	 */
+	public <T> Stream<T> select(AwsS3SelectQuery query, Class<T> cls) {
+		return select(query, cls, new AwsS3SelectStats());
+	}
+
+	/**
+	 * Same as select(query, cls), reporting the scanned/processed/returned
+	 * byte counts of the query into stats as the stream is consumed.
+	 * 
+	 * @param query
+	 * @param cls
+	 * @param stats
+	 * @return
+	 */
+	public <T> Stream<T> select(AwsS3SelectQuery query, Class<T> cls, AwsS3SelectStats stats) {
+		return select(getClient(), query, cls, stats);
+	}
 
+	private <T> Stream<T> select(AmazonS3Client s3, AwsS3SelectQuery query, Class<T> cls, AwsS3SelectStats stats) {
 		SelectObjectContentRequest request = new SelectObjectContentRequest();
 		request.setBucketName(bucket);
-		request.setKey(path);
-		request.setExpression("select " + columnExpression + " from S3Object s");
+		request.setKey(query.path);
+		request.setExpression(query.toSql());
 		request.setExpressionType(ExpressionType.SQL);
-
-		InputSerialization inputSerialization = new InputSerialization();
-		inputSerialization.setJson(new JSONInput().withType(JSONType.LINES));
-		inputSerialization.setCompressionType(CompressionType.GZIP);
-		request.setInputSerialization(inputSerialization);
+		request.setInputSerialization(query.toInputSerialization());
 
 		OutputSerialization outputSerialization = new OutputSerialization();
 		outputSerialization.setJson(new JSONOutput().withRecordDelimiter("\n"));
 		request.setOutputSerialization(outputSerialization);
-		
-		try(SelectObjectContentResult result = s3.selectObjectContent(request)) {
-			InputStream resultInputStream = result.getPayload().getRecordsInputStream();
-			return parseJsonLines(IOUtils.toString(resultInputStream));
-		} catch (SdkClientException | IOException e) {
-			throw new RuntimeException(e);
+
+		final SelectObjectContentResult result = s3.selectObjectContent(request);
+		try {
+			InputStream resultInputStream = result.getPayload()
+					.getRecordsInputStream(new SelectObjectContentEventVisitor() {
+						@Override
+						public void visit(SelectObjectContentEvent.ProgressEvent event) {
+							Progress p = event.getDetails();
+							stats.update(p.getBytesScanned(), p.getBytesProcessed(), p.getBytesReturned(), false);
+						}
+
+						@Override
+						public void visit(SelectObjectContentEvent.StatsEvent event) {
+							Stats st = event.getDetails();
+							stats.update(st.getBytesScanned(), st.getBytesProcessed(), st.getBytesReturned(), true);
+							logger.fine("select from s3://" + bucket + "/" + query.path + ": " + stats);
+						}
+					});
+			return this.<T>decodeList(resultInputStream, cls).onClose(() -> {
+				try {
+					result.close();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+		} catch (RuntimeException e) {
+			result.getPayload().abort();
+			throw e;
 		}
 	}
 
+	public InputStream openInputStream(AwsS3FetchParams param) {
+		return openInputStream(getClient(), param);
+	}
+
 	public InputStream openInputStream(AmazonS3Client s3, AwsS3FetchParams param) {
-		long started = System.currentTimeMillis();
 		try {
-			File cacheFile = cacheLocation(param.path);
-			final boolean CACHE_FILE_EXISTS = cacheFile.exists();
+			if (param.noSave) {
+				File cacheFile = cacheLocation(param.path);
+				final boolean CACHE_FILE_EXISTS = cacheFile.exists();
+
+				if ((param.skipStaleCheck || isFresh(param, cacheFile)) && CACHE_FILE_EXISTS) {
+					diskCache.recordHit(cacheFile);
+					return param.cachedObjecReturnsNull ? null : diskCache.open(cacheFile);
+				}
 
-			if (param.skipStaleCheck && CACHE_FILE_EXISTS) {
-				if (param.cachedObjecReturnsNull)
+				if (param.nonexistentAsNull && isKnownMissing(param.path)) {
 					return null;
-				else
-					return new FileInputStream(cacheFile);
-			}
+				}
 
-			final GetObjectRequest getObjectRequest
-					= new GetObjectRequest(bucket, param.path);
+				final S3Object s3o;
+				try {
+					s3o = getObject(() -> s3.getObject(conditionalGet(param.path, cacheFile)));
+				} catch (AmazonS3Exception e) {
+					if (param.nonexistentAsNull && isNotFound(e)) {
+						knownMissing(param.path);
+						return null;
+					}
+					throw e;
+				}
 
-			if (CACHE_FILE_EXISTS) {
-				final long fileTime = cacheFile.lastModified();
-				getObjectRequest.setModifiedSinceConstraint(new Date(fileTime));
+				if (s3o == null && CACHE_FILE_EXISTS) {
+					logger.fine(param.path
+							+ ": cached file is newer than S3");
+					revalidated(param.path);
+					diskCache.recordHit(cacheFile);
+					return diskCache.open(cacheFile);
+				}
+				diskCache.recordMiss();
+				return s3o.getObjectContent();
 			}
 
-			S3Object s3o = s3.getObject(getObjectRequest);
+			File cacheFile = refreshCacheFile(s3, param);
+			return cacheFile == null ? null : diskCache.open(cacheFile);
 
-			if (s3o == null && CACHE_FILE_EXISTS) {
-				logger.fine(param.path
-						+ ": cached file is newer than S3");
-				return new FileInputStream(cacheFile);
-			} else {
-				if (param.noSave) {
-					return s3o.getObjectContent();
-				} else {
-					Files.createDirectories(cacheFile.toPath().getParent());
-					File temp = new File(cacheFile.getAbsolutePath() + "~temp");
-					try(FileOutputStream fos = new FileOutputStream(temp)) {
-						IOUtils.copy(s3o.getObjectContent(), fos);
-						fos.close();
-						s3o.close();
-					}
-					cacheFile.delete();
-					if(!temp.renameTo(cacheFile)) { // use rename to prevent partially-written crash files
-						throw new RuntimeException(cacheFile.getAbsolutePath());
-					}
-					logger.info(
-							"fetched " + cacheFile.length() + " bytes from s3://" + bucket + "/" + param.path
-							+ " in " + (System.currentTimeMillis()-started)/1000.0 + "s");
-					return new FileInputStream(cacheFile);
-				}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Make sure the cache file of param.path is current, honoring
+	 * skipStaleCheck, nonexistentAsNull and the freshness window.
+	 * 
+	 * @return the cache file, or null if the cached copy was used and
+	 *         param.cachedObjecReturnsNull is set, or if the object does not
+	 *         exist and param.nonexistentAsNull is set
+	 */
+	private File refreshCacheFile(AmazonS3Client s3, AwsS3FetchParams param) throws IOException {
+		File cacheFile = cacheLocation(param.path);
+
+		if ((param.skipStaleCheck || isFresh(param, cacheFile)) && cacheFile.exists()) {
+			diskCache.recordHit(cacheFile);
+			return param.cachedObjecReturnsNull ? null : cacheFile;
+		}
+
+		if (param.nonexistentAsNull && isKnownMissing(param.path)) {
+			return null;
+		}
+
+		try {
+			cacheFill(s3, param.path, cacheFile, param.forceDownload);
+		} catch (AmazonS3Exception e) {
+			// the GET's 404 answers the existence question, no separate HEAD needed
+			if (param.nonexistentAsNull && isNotFound(e)) {
+				knownMissing(param.path);
+				return null;
 			}
+			throw e;
+		}
+		return cacheFile;
+	}
 
+	/**
+	 * refreshCacheFile() for collaborators such as {@link AwsS3Mirror}.
+	 */
+	File fetchToCache(AwsS3FetchParams param) {
+		try {
+			return refreshCacheFile(getClient(), param);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * ETag of the S3 object the cache file of path was downloaded from, if
+	 * this process fetched or revalidated it and the file is unchanged since.
+	 */
+	String cachedEtag(String path) {
+		AwsS3ObjectInfo info = objectInfo.get(path);
+		return info != null && info.describes(cacheLocation(path)) ? info.etag : null;
+	}
+
+	/**
+	 * Delete the local copy of an object, along with what is known about it.
+	 */
+	void dropCached(String path) {
+		objectInfo.remove(path);
+		File cacheFile = cacheLocation(path);
+		File raw = decompressedLocation(cacheFile);
+		if (cacheFile.delete()) {
+			diskCache.removed(cacheFile);
+		}
+		if (raw.delete()) {
+			diskCache.removed(raw);
+		}
+	}
+
+	/**
+	 * Open the decompressed contents of an object, from the mapped
+	 * decompressed copy if that tier is enabled.
+	 */
+	private InputStream openDecompressed(AwsS3FetchParams params) throws IOException {
+		if (decompressedCache && !params.noSave) {
+			File cacheFile = refreshCacheFile(getClient(), params);
+			return cacheFile == null ? null : openDecompressed(readCodec(params.path), cacheFile);
+		}
+		InputStream is = openInputStream(params);
+		return is == null ? null : decode(readCodec(params.path), is);
+	}
+
+	private InputStream openDecompressed(AwsS3Codec codec, File cacheFile) throws IOException {
+		File raw = decompressedLocation(cacheFile);
+		ByteBuffer mapped = mapDecompressed(codec, cacheFile);
+		return mapped != null ? new AwsS3ByteBufferInputStream(mapped) : diskCache.open(raw);
+	}
+
+	/**
+	 * Codec for writing path: selected by the key suffix, gzip by default.
+	 */
+	private AwsS3Codec writeCodec(String path) {
+		AwsS3Codec codec = AwsS3Codecs.forSuffix(path);
+		return codec == null || AwsS3Codecs.isGzip(codec)
+				? AwsS3Codecs.gzip(compressionLevel, parallelCompression) : codec;
+	}
+
+	/**
+	 * Codec for reading path: selected by the key suffix or else by the
+	 * Content-Encoding S3 returned for it; null if neither is known, in which
+	 * case the format is detected from the content.
+	 */
+	private AwsS3Codec readCodec(String path) {
+		AwsS3Codec codec = AwsS3Codecs.forSuffix(path);
+		if (codec == null) {
+			AwsS3ObjectInfo info = objectInfo.get(path);
+			codec = info == null ? null : AwsS3Codecs.forContentEncoding(info.contentEncoding);
+		}
+		return codec;
+	}
+
+	private static InputStream decode(AwsS3Codec codec, InputStream is) throws IOException {
+		return codec == null ? AwsS3Codecs.decodeDetected(is) : codec.decode(is);
+	}
+
+	/**
+	 * Memory-map the decompressed copy of a cache file, (re)creating it if it
+	 * is missing or older than the cache file. Returns null for copies too
+	 * large to map in one buffer, which are then read as plain files.
+	 */
+	private ByteBuffer mapDecompressed(AwsS3Codec codec, File cacheFile) throws IOException {
+		File raw = decompressedLocation(cacheFile);
+		if (!raw.exists() || raw.lastModified() != cacheFile.lastModified()) {
+			Path temp = Files.createTempFile(raw.getParentFile().toPath(), raw.getName(), "~temp");
+			try (InputStream is = decode(codec, diskCache.open(cacheFile))) {
+				Files.copy(is, temp, StandardCopyOption.REPLACE_EXISTING);
+				temp.toFile().setLastModified(cacheFile.lastModified());
+				Files.move(temp, raw.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+			diskCache.added(raw);
+		} else {
+			diskCache.recordHit(raw);
+		}
+		try (FileChannel ch = FileChannel.open(raw.toPath(), StandardOpenOption.READ)) {
+			if (ch.size() > Integer.MAX_VALUE) {
+				return null;
+			}
+			return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+	}
+
+	private File decompressedLocation(File cacheFile) {
+		return new File(cacheFile.getPath() + "~raw");
+	}
+
+	private File lockLocation(File cacheFile) {
+		return new File(cacheFile.getPath() + "~lock");
+	}
+
+	/**
+	 * Register a rewritten cache file and drop its now stale decompressed
+	 * copy.
+	 */
+	private void cacheUpdated(File cacheFile) {
+		diskCache.added(cacheFile);
+		File raw = decompressedLocation(cacheFile);
+		if (raw.delete()) {
+			diskCache.removed(raw);
+		}
+	}
+
 	@Deprecated // high memory consumption
 	private byte[] fetch(AwsS3FetchParams parameterObject) {
-		long started = System.currentTimeMillis();
+		try (InputStream is = openInputStream(parameterObject)) {
+			return is == null ? null : IOUtils.toByteArray(is);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Bring the cache file of the given path up to date with S3, downloading
+	 * the object only if it is newer than the cached copy. Concurrent fills of
+	 * the same path are coalesced: one thread talks to S3, the others wait for
+	 * it and share its outcome, including its failure.
+	 * 
+	 * @param s3
+	 * @param path
+	 * @param cacheFile
+	 * @param force download unconditionally, unless another fill is running
+	 * @return true if the object was downloaded by this call, false if the
+	 *         cached copy was still current or another thread filled it
+	 * @throws IOException
+	 */
+	private boolean cacheFill(AmazonS3Client s3, String path, File cacheFile, boolean force) throws IOException {
+		final CompletableFuture<Boolean> fill = new CompletableFuture<>();
+		final CompletableFuture<Boolean> running = cacheFills.putIfAbsent(path, fill);
+		if (running != null) {
+			try {
+				running.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+				throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+			}
+			diskCache.recordHit(cacheFile);
+			return false;
+		}
 		try {
-			File cacheFile = cacheLocation(parameterObject.path);
-			final boolean CACHE_FILE_EXISTS = cacheFile.exists();
+			boolean fetched = lockedDownload(s3, path, cacheFile, force);
+			fill.complete(fetched);
+			return fetched;
+		} catch (IOException | RuntimeException | Error e) {
+			fill.completeExceptionally(e);
+			throw e;
+		} finally {
+			cacheFills.remove(path, fill);
+		}
+	}
 
-			if (parameterObject.skipStaleCheck && CACHE_FILE_EXISTS) {
-				if (parameterObject.cachedObjecReturnsNull)
-					return null;
-				else
-					return Files.readAllBytes(cacheFile.toPath());
+	/**
+	 * download() under an exclusive lock on a sidecar "~lock" file, so that
+	 * processes sharing the cache directory fetch a key once. A process that
+	 * had to wait for the lock, and finds the cache file replaced meanwhile,
+	 * uses that file instead of asking S3 again.
+	 *
+	 * The lock file only exists while a fill is running: its holder retires
+	 * it (marks it non-empty) and deletes it before releasing the lock, and
+	 * whoever then acquires a retired lock file starts over with a new one.
+	 * The OS releases the locks of crashed processes; the temp files they
+	 * left behind are deleted here.
+	 */
+	private boolean lockedDownload(AmazonS3Client s3, String path, File cacheFile, boolean force)
+			throws IOException {
+		Files.createDirectories(cacheFile.toPath().getParent());
+		final long fileTime = cacheFile.lastModified();
+		final long fileLength = cacheFile.length();
+		final File lockFile = lockLocation(cacheFile);
+		boolean waited = false;
+		while (true) {
+			try (FileChannel ch = FileChannel.open(lockFile.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				FileLock lock = lock(ch, false);
+				if (lock == null) {
+					waited = true;
+					lock = lock(ch, true);
+				}
+				try {
+					if (ch.size() > 0) {
+						waited = true;
+						continue; // retired while we waited
+					}
+					try {
+						if (waited && cacheFile.exists()
+								&& (cacheFile.lastModified() != fileTime || cacheFile.length() != fileLength)) {
+							logger.fine(path + ": fetched by another process");
+							cacheUpdated(cacheFile);
+							diskCache.recordHit(cacheFile);
+							return false;
+						}
+						deleteStaleTemps(cacheFile);
+						return download(s3, path, cacheFile, force);
+					} finally {
+						retire(ch, lockFile);
+					}
+				} finally {
+					lock.release();
+				}
 			}
+		}
+	}
 
-			AmazonS3Client s3 = getClient();
+	/**
+	 * Mark a held lock file as no longer valid and delete it. If it cannot be
+	 * deleted it is left valid (empty) for the next fill.
+	 */
+	private static void retire(FileChannel ch, File lockFile) {
+		try {
+			ch.write(ByteBuffer.wrap(new byte[] { 1 }), 0);
+			Files.delete(lockFile.toPath());
+		} catch (IOException e) {
+			try {
+				ch.truncate(0);
+			} catch (IOException e2) {
+				// the next holder starts over with a new lock file
+			}
+		}
+	}
 
-			final GetObjectRequest getObjectRequest
-					= new GetObjectRequest(bucket, parameterObject.path);
+	/**
+	 * Lock a cache lock file. Another template of this JVM holding the lock
+	 * shows up as OverlappingFileLockException rather than blocking, so that
+	 * case is polled.
+	 * 
+	 * @return the lock, or null if wait is false and the lock is held
+	 */
+	private static FileLock lock(FileChannel ch, boolean wait) throws IOException {
+		while (true) {
+			try {
+				return wait ? ch.lock() : ch.tryLock();
+			} catch (OverlappingFileLockException e) {
+				if (!wait) {
+					return null;
+				}
+				try {
+					Thread.sleep(LOCK_POLL_INTERVAL);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(ie);
+				}
+			}
+		}
+	}
 
-			if (CACHE_FILE_EXISTS) {
-				final long fileTime = cacheFile.lastModified();
-				getObjectRequest.setModifiedSinceConstraint(new Date(fileTime));
+	/**
+	 * Delete download temp files of cacheFile left by a download that did not
+	 * finish (crash, kill); only called while holding its lock. Download
+	 * temps are named name~dl&lt;digits&gt;~temp: the last "~dl" of such a
+	 * name is the one after the key, so the temps of other keys (or of an
+	 * {@link AwsS3ListWriter}) never match.
+	 */
+	private void deleteStaleTemps(File cacheFile) {
+		final String prefix = cacheFile.getName() + DOWNLOAD_TEMP;
+		File[] temps = cacheFile.getParentFile().listFiles((dir, f) -> f.startsWith(prefix) && f.endsWith("~temp")
+				&& f.length() > prefix.length() + "~temp".length()
+				&& f.substring(prefix.length(), f.length() - "~temp".length()).matches("[0-9]+"));
+		if (temps != null) {
+			for (File temp : temps) {
+				if (temp.delete()) {
+					logger.info("deleted stale " + temp);
+				}
 			}
+		}
+	}
 
-			try (S3Object s3o = s3.getObject(getObjectRequest)) {
+	/**
+	 * The S3 side of cacheFill(). Large objects are fetched as parallel byte
+	 * ranges. The download goes to a temp file of its own that is moved into
+	 * place, so readers never see a partially written file.
+	 */
+	private boolean download(AmazonS3Client s3, String path, File cacheFile, boolean force) throws IOException {
+		long started = System.currentTimeMillis();
 
-				if (s3o == null && CACHE_FILE_EXISTS) {
-					logger.fine(parameterObject.path
-							+ ": cached file is newer than S3");
-					return Files.readAllBytes(cacheFile.toPath());
-				} else {
-					try (InputStream is = s3o.getObjectContent()) {
-						byte[] data = IOUtils.toByteArray(is);
-						logger.info(
-								"fetched " + data.length + " bytes from s3://" + bucket + "/" + parameterObject.path
-								+ " in " + (System.currentTimeMillis()-started)/1000.0 + "s");
-						if (!parameterObject.noSave) {
-							cacheWrite(cacheFile, data);
-						}
-						return data;
-					}
+		S3Object s3o = getObject(() -> s3.getObject(
+				force ? new GetObjectRequest(bucket, path) : conditionalGet(path, cacheFile)));
+
+		if (s3o == null) {
+			logger.fine(path
+					+ ": cached file is newer than S3");
+			revalidated(path);
+			diskCache.recordHit(cacheFile);
+			return false;
+		}
+		diskCache.recordMiss();
+
+		Files.createDirectories(cacheFile.toPath().getParent());
+		Path temp = Files.createTempFile(cacheFile.toPath().getParent(), cacheFile.getName() + DOWNLOAD_TEMP,
+				"~temp");
+		try {
+			try {
+				AwsS3RangeDownloader.download(s3, s3o, temp.toFile(), rangeThreshold, partSize,
+						transferExecutor(), partRetries);
+			} finally {
+				s3o.close();
+			}
+			// rename to prevent partially-written crash files
+			Files.move(temp, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		cacheUpdated(cacheFile);
+		objectInfo.put(path, AwsS3ObjectInfo.of(s3o.getObjectMetadata(), cacheFile));
+		logger.info(
+				"fetched " + cacheFile.length() + " bytes from s3://" + bucket + "/" + path
+				+ " in " + (System.currentTimeMillis()-started)/1000.0 + "s");
+		return true;
+	}
+
+	/**
+	 * Send a GET under the request policy (hedging, retries); the losing
+	 * response of a hedged GET is aborted.
+	 */
+	private S3Object getObject(Supplier<S3Object> request) {
+		return requestPolicy.execute(request, s3o -> {
+			if (s3o != null) {
+				s3o.getObjectContent().abort();
+				try {
+					s3o.close();
+				} catch (IOException e) {
+					// aborted
 				}
 			}
+		});
+	}
+
+	/**
+	 * Build a GET that only returns the object if it differs from the cached
+	 * copy: by ETag when this process knows the ETag of the cached file,
+	 * otherwise by comparing against the file's modification time.
+	 */
+	private GetObjectRequest conditionalGet(String path, File cacheFile) {
+		final GetObjectRequest getObjectRequest
+				= new GetObjectRequest(bucket, path);
+
+		if (cacheFile.exists()) {
+			AwsS3ObjectInfo info = objectInfo.get(path);
+			if (info != null && info.etag != null && info.describes(cacheFile)) {
+				getObjectRequest.withNonmatchingETagConstraint(info.etag);
+			} else {
+				objectInfo.remove(path);
+				final long fileTime = cacheFile.lastModified();
+				getObjectRequest.setModifiedSinceConstraint(new Date(fileTime));
+			}
+		}
+		return getObjectRequest;
+	}
 
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+	private boolean isFresh(AwsS3FetchParams param, File cacheFile) {
+		if (param.freshnessTtl <= 0) {
+			return false;
 		}
+		AwsS3ObjectInfo info = objectInfo.get(param.path);
+		return info != null && info.isFresh(param.freshnessTtl) && info.describes(cacheFile);
+	}
+
+	private void revalidated(String path) {
+		objectInfo.computeIfPresent(path, (k, info) -> info.revalidated());
 	}
 
 	private void cacheWrite(File cacheFile, byte[] data) throws IOException {
 		Files.createDirectories(cacheFile.toPath().getParent());
 		Files.write(cacheFile.toPath(), data);
+		cacheUpdated(cacheFile);
 	}
 
 	private FileOutputStream cacheOutputStream(File cacheFile) throws IOException {
@@ -312,8 +854,7 @@ public class AwsS3Template {
 	}
 
 	public File cacheLocation(String path) {
-		File cacheDir
-				= new File(System.getProperty("java.io.tmpdir"), "s3-cache");
+		File cacheDir = diskCache.getRoot();
 		File cacheFile
 				= new File(cacheDir, bucket + "/" + path.replace(':', '_'));
 		return cacheFile;
@@ -327,12 +868,10 @@ public class AwsS3Template {
 	 * @throws IOException
 	 */
 	public <T> T get(String key, boolean skipStaleCheck) throws IOException {
-		byte[] buf = fetch(
-				new AwsS3FetchParams(key).withSkipStaleCheck(skipStaleCheck));
-		try (InputStream is = new ByteArrayInputStream(buf)) {
-			InputStream is2
-					= key.endsWith(".gz") ? new GZIPInputStream(is) : is;
-			return objectMapper.readValue(is2, new TypeReference<T>() {
+		final AwsS3FetchParams params
+				= new AwsS3FetchParams(key).withSkipStaleCheck(skipStaleCheck);
+		try (InputStream is = openDecompressed(params)) {
+			return objectMapper.readValue(is, new TypeReference<T>() {
 			});
 		}
 	}
@@ -344,8 +883,12 @@ public class AwsS3Template {
 	 */
 	public <T> List<T> getList(String key, Class<T> cls,
 			Supplier<List<T>> compute) {
-		if (exists(key)) {
-			return getList(key, cls, true);
+		final InputStream is = openList(
+				new AwsS3FetchParams(key).withSkipStaleCheck(true).withNonexistentAsNull());
+		if (is != null) {
+			try (Stream<T> stream = decodeList(is, cls)) {
+				return stream.collect(Collectors.toCollection(ArrayList::new));
+			}
 		} else {
 			List<T> info = compute.get();
 			putList(key, cls, info);
@@ -377,23 +920,62 @@ public class AwsS3Template {
 	 * @throws IOException
 	 */
 	public <T> List<T> getList(Class<T> cls, AwsS3FetchParams parms) {
-		if (parms.nonexistentAsNull && !exists(parms.path)) {
-			return new ArrayList<>();
-		}
-		byte[] buf = fetch(parms);
-		try (InputStream is = new ByteArrayInputStream(buf)) {
-			InputStream is2
-					= parms.path.endsWith(".gz") ? new GZIPInputStream(is) : is;
-			try (BufferedReader br
-					= new BufferedReader(new InputStreamReader(is2))) {
-				List<T> list = new ArrayList<T>();
-				String jsonLine;
-				while ((jsonLine = br.readLine()) != null) {
-					list.add(objectMapper.readValue(jsonLine, cls));
-				}
-				return list;
-			}
+		try (Stream<T> stream = streamList(cls, parms)) {
+			return stream.collect(Collectors.toCollection(ArrayList::new));
+		}
+	}
+
+	/**
+	 * Constant-memory variant of getList(): records are decoded one at a time
+	 * straight from the cache file (or from the S3 stream when noSave is set),
+	 * so heap usage does not grow with the size of the object. The stream
+	 * must be closed to release the underlying file.
+	 * 
+	 * @param cls
+	 * @param parms
+	 * @return
+	 */
+	public <T> Stream<T> streamList(Class<T> cls, AwsS3FetchParams parms) {
+		final InputStream is = openList(parms);
+		return is == null ? Stream.empty() : decodeList(is, cls);
+	}
+
+	InputStream openList(AwsS3FetchParams parms) {
+		try {
+			return openDecompressed(parms);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Decode a decompressed list, detecting whether it holds JSON lines or
+	 * length-prefixed Smile / CBOR records.
+	 */
+	<T> Stream<T> decodeList(InputStream in, Class<T> cls) {
+		final BufferedInputStream is = new BufferedInputStream(in, 65536);
+		try {
+			final AwsS3Encoding detected = AwsS3Encoding.detect(is);
+			final Iterator<T> it = detected == AwsS3Encoding.JSON ? objectMapper.readerFor(cls).readValues(is)
+					: detected.readRecords(objectMapper.readerFor(cls), is);
+			return StreamSupport
+					.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false)
+					.onClose(() -> {
+						try {
+							if (it instanceof MappingIterator) {
+								((MappingIterator<T>) it).close();
+							}
+							is.close();
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					});
 		} catch (IOException e) {
+			try {
+				is.close();
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
 			throw new RuntimeException(e);
 		}
 	}
@@ -442,136 +1024,1108 @@ public class AwsS3Template {
 	 * @return Returns the local cache file.
 	 */
 	public <T> File putList(String path, Class<T> cls, Collection<T> list) {
+		File cacheLocation = cacheList(path, cls, list);
+		gzipMetaWrite(path, cacheLocation);
+		return cacheLocation;
+	}
+
+	/**
+	 * putList() that uploads right away, even with write-behind on: for
+	 * objects that others (a manifest, an index) will point at.
+	 */
+	private <T> File putListNow(String path, Class<T> cls, Collection<T> list) {
+		File cacheLocation = cacheList(path, cls, list);
+		new FileUpload(path, cacheLocation).run();
+		return cacheLocation;
+	}
+
+	/**
+	 * Write a list to its cache file, in the format of putList().
+	 */
+	private <T> File cacheList(String path, Class<T> cls, Collection<T> list) {
 		ObjectWriter writerFor = objectMapper.writerFor(cls);
 		File tempLocation = cacheLocation(path + "~temp");
 		try(FileOutputStream cacheOut = cacheOutputStream(tempLocation);
-			GZIPOutputStream gzo = new GZIPOutputStream(cacheOut)) {
+			OutputStream gzo = writeCodec(path).encode(cacheOut)) {
 
 			for(T item: list) {
-				gzo.write(writerFor.writeValueAsBytes(item));
-				gzo.write('\n');
+				if (encoding == AwsS3Encoding.JSON) {
+					gzo.write(writerFor.writeValueAsBytes(item));
+					gzo.write('\n');
+				} else {
+					encoding.writeRecord(writerFor, gzo, item);
+				}
 			}
 		} catch (IOException e1) {
 			throw new RuntimeException(e1);
 		}
 
-		// rename-after-write to prevent creation of partially written files
-		File cacheLocation = cacheLocation(path);
-		cacheLocation.delete();
-		tempLocation.renameTo(cacheLocation);
-		
-		// write to S3
-		gzipMetaWrite(path, cacheLocation);
-		return cacheLocation;
+		// rename-after-write to prevent creation of partially written files
+		File cacheLocation = cacheLocation(path);
+		cacheLocation.delete();
+		tempLocation.renameTo(cacheLocation);
+		cacheUpdated(cacheLocation);
+		return cacheLocation;
+	}
+
+	/**
+	 * Write a list to S3 one record at a time, in the format of putList(),
+	 * without a Collection: records are compressed and uploaded in parts as
+	 * they are written, and the object is completed by
+	 * {@link AwsS3ListWriter#commit()}. Closing the writer without a commit
+	 * discards the upload. See {@link AwsS3ListWriter}.
+	 * 
+	 * @param path
+	 * @param cls
+	 * @return
+	 */
+	public <T> AwsS3ListWriter<T> openListWriter(String path, Class<T> cls) {
+		try {
+			return new AwsS3ListWriter<>(this, path, objectMapper.writerFor(cls), encoding, writeCodec(path),
+					partSize);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write JSON to S3, in one-per-line Athena-compatible format or for
+	 * retrieval with getList(). with Optional caching and Improved memory
+	 * utilization
+	 * 
+	 * @param path
+	 * @param list
+	 */
+	public void putList(String path, Collection<JsonNode> list, boolean cache) {
+		try {
+			byte[] ba = encode(list, writeCodec(path), encoding);
+			gzipMetaWrite(path, ba);
+			if (cache) {
+				cacheWrite(cacheLocation(path), ba);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public byte[] gzipEncode(
+			Collection<JsonNode> list) throws IOException, JsonGenerationException, JsonMappingException {
+		return encode(list, AwsS3Codecs.gzip(compressionLevel, parallelCompression), AwsS3Encoding.JSON);
+	}
+
+	private byte[] encode(Collection<JsonNode> list, AwsS3Codec codec, AwsS3Encoding encoding) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		OutputStream gzo = codec.encode(baos);
+		ObjectWriter writer = objectMapper.writerFor(JsonNode.class);
+
+		for (JsonNode item : list) {
+			if (encoding == AwsS3Encoding.JSON) {
+				gzo.write(writer.writeValueAsBytes(item));
+				gzo.write('\n');
+			} else {
+				encoding.writeRecord(writer, gzo, item);
+			}
+		}
+
+		gzo.close();
+		byte[] ba = baos.toByteArray();
+		return ba;
+	}
+
+	/**
+	 * Write a collection as a dataset: up to the given number of gzip
+	 * JSON-lines part objects under prefix, uploaded concurrently, followed by
+	 * a manifest listing them. The layout can be used as-is as an Athena table
+	 * location.
+	 * 
+	 * Parts get names unique to each write, so a rewrite never touches the
+	 * parts of the current manifest: readers switch over when the new
+	 * manifest is written, after which the parts of earlier writes are
+	 * deleted.
+	 * 
+	 * @param prefix
+	 * @param cls
+	 * @param list
+	 * @param parts number of part objects (per partition)
+	 * @return the manifest
+	 */
+	public <T> AwsS3DatasetManifest putDataset(String prefix, Class<T> cls, Collection<T> list, int parts) {
+		return putDataset(prefix, cls, list, parts, null);
+	}
+
+	/**
+	 * Write a Hive-style partitioned dataset: records are grouped by the
+	 * column values returned by partitioner (use a LinkedHashMap, the
+	 * iteration order gives the directory nesting) and each group is written
+	 * under prefix/col1=value1/col2=value2/ as in
+	 * {@link #putDataset(String, Class, Collection, int)}.
+	 * 
+	 * @param prefix
+	 * @param cls
+	 * @param list
+	 * @param parts number of part objects per partition
+	 * @param partitioner partition column values of a record, or null for no
+	 *            partitioning
+	 * @return the manifest
+	 */
+	public <T> AwsS3DatasetManifest putDataset(String prefix, Class<T> cls, Collection<T> list, int parts,
+			Function<T, Map<String, String>> partitioner) {
+		final String root = datasetRoot(prefix);
+		final Map<Map<String, String>, List<T>> groups = new LinkedHashMap<>();
+		for (T item : list) {
+			Map<String, String> partition = partitioner == null ? Collections.emptyMap() : partitioner.apply(item);
+			groups.computeIfAbsent(partition, k -> new ArrayList<>()).add(item);
+		}
+
+		final String writeId = Long.toString(System.currentTimeMillis(), 36)
+				+ String.format("%04x", ThreadLocalRandom.current().nextInt(0x10000));
+		final AwsS3DatasetManifest manifest = new AwsS3DatasetManifest();
+		final List<CompletableFuture<File>> uploads = new ArrayList<>();
+		for (Map.Entry<Map<String, String>, List<T>> group : groups.entrySet()) {
+			final List<T> records = group.getValue();
+			final int n = Math.max(1, Math.min(parts, records.size()));
+			for (int i = 0; i < n; i++) {
+				final List<T> chunk = records.subList(
+						(int) ((long) records.size() * i / n), (int) ((long) records.size() * (i + 1) / n));
+				final AwsS3DatasetManifest.Part part = new AwsS3DatasetManifest.Part();
+				part.key = root + partitionPath(group.getKey()) + String.format("part-%s-%05d.json.gz", writeId, i);
+				part.partition.putAll(group.getKey());
+				part.records = chunk.size();
+				manifest.parts.add(part);
+				uploads.add(datasetExecutor().supply(() -> putListNow(part.key, cls, chunk)));
+			}
+		}
+		try {
+			for (int i = 0; i < uploads.size(); i++) {
+				manifest.parts.get(i).bytes = join(uploads.get(i)).length();
+			}
+			gzipWriteNow(root + AwsS3DatasetManifest.NAME, objectMapper.writeValueAsBytes(manifest));
+		} catch (IOException | RuntimeException e) {
+			// the old manifest still stands; don't leave our parts behind
+			uploads.forEach(f -> f.cancel(true));
+			try {
+				deleteParts(root, manifest.parts.stream().map(p -> p.key).collect(Collectors.toList()));
+			} catch (RuntimeException e2) {
+				e.addSuppressed(e2);
+			}
+			throw e instanceof IOException ? new RuntimeException(e) : (RuntimeException) e;
+		}
+		deleteStaleParts(root, manifest);
+		return manifest;
+	}
+
+	/**
+	 * Read the manifest of a dataset written by putDataset().
+	 * 
+	 * @param prefix
+	 * @param skipStaleCheck
+	 * @return the manifest, or null if there is no dataset under prefix
+	 */
+	public AwsS3DatasetManifest getDatasetManifest(String prefix, boolean skipStaleCheck) {
+		String json = gzipRead(new AwsS3FetchParams(datasetRoot(prefix) + AwsS3DatasetManifest.NAME)
+				.withSkipStaleCheck(skipStaleCheck).withNonexistentAsNull());
+		try {
+			return json == null ? null : objectMapper.readValue(json, AwsS3DatasetManifest.class);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read all records of a dataset. Parts are downloaded and decoded
+	 * concurrently, and returned in manifest order.
+	 * 
+	 * @param prefix
+	 * @param cls
+	 * @param partitionFilter selects the partitions to read (by their column
+	 *            values), or null for all
+	 * @return
+	 */
+	public <T> List<T> getDataset(String prefix, Class<T> cls, Predicate<Map<String, String>> partitionFilter) {
+		final List<CompletableFuture<List<T>>> reads = datasetParts(prefix, partitionFilter).stream()
+				.map(part -> datasetExecutor().supply(() -> getList(cls, new AwsS3FetchParams(part.key))))
+				.collect(Collectors.toList());
+		final List<T> out = new ArrayList<>();
+		for (CompletableFuture<List<T>> read : reads) {
+			out.addAll(join(read));
+		}
+		return out;
+	}
+
+	/**
+	 * Constant-memory variant of getDataset(): parts are downloaded to the
+	 * local cache concurrently, and decoded one at a time, in manifest order,
+	 * as the stream reaches them. The stream must be closed.
+	 * 
+	 * @param prefix
+	 * @param cls
+	 * @param partitionFilter selects the partitions to read, or null for all
+	 * @return
+	 */
+	public <T> Stream<T> streamDataset(String prefix, Class<T> cls, Predicate<Map<String, String>> partitionFilter) {
+		final List<AwsS3DatasetManifest.Part> parts = datasetParts(prefix, partitionFilter);
+		final List<CompletableFuture<File>> downloads = parts.stream()
+				.map(part -> datasetExecutor().supply(() -> {
+					try {
+						return refreshCacheFile(getClient(), new AwsS3FetchParams(part.key));
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}))
+				.collect(Collectors.toList());
+
+		// Stream.flatMap() is not lazy on Java 8 (a short-circuiting
+		// terminal operation still drains each inner stream), so parts are
+		// concatenated by hand: one open at a time, closed when exhausted
+		class Parts implements Iterator<T> {
+			int next;
+			Stream<T> part;
+			Iterator<T> records = Collections.emptyIterator();
+
+			@Override
+			public boolean hasNext() {
+				while (!records.hasNext()) {
+					close();
+					if (next == parts.size()) {
+						return false;
+					}
+					join(downloads.get(next));
+					part = streamList(cls, new AwsS3FetchParams(parts.get(next).key).withSkipStaleCheck(true));
+					records = part.iterator();
+					next++;
+				}
+				return true;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return records.next();
+			}
+
+			void close() {
+				if (part != null) {
+					part.close();
+					part = null;
+				}
+			}
+		}
+		final Parts it = new Parts();
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false)
+				.onClose(() -> {
+					downloads.forEach(f -> f.cancel(true));
+					it.close();
+				});
+	}
+
+	private List<AwsS3DatasetManifest.Part> datasetParts(String prefix,
+			Predicate<Map<String, String>> partitionFilter) {
+		AwsS3DatasetManifest manifest = getDatasetManifest(prefix, false);
+		if (manifest == null) {
+			throw new RuntimeException("no dataset manifest under s3://" + bucket + "/" + prefix);
+		}
+		return manifest.parts.stream()
+				.filter(part -> partitionFilter == null || partitionFilter.test(part.partition))
+				.collect(Collectors.toList());
+	}
+
+	private void deleteStaleParts(String root, AwsS3DatasetManifest manifest) {
+		final Set<String> current = manifest.parts.stream().map(p -> p.key).collect(Collectors.toSet());
+		final List<String> stale = new ArrayList<>();
+		listKeys(root, key -> {
+			if (key.substring(key.lastIndexOf('/') + 1).startsWith("part-") && !current.contains(key)) {
+				stale.add(key);
+			}
+		});
+		deleteParts(root, stale);
+	}
+
+	private void deleteParts(String root, List<String> keys) {
+		for (int i = 0; i < keys.size(); i += 1000) {
+			getClient().deleteObjects(new DeleteObjectsRequest(bucket).withKeys(
+					keys.subList(i, Math.min(keys.size(), i + 1000)).toArray(new String[0])));
+		}
+		if (!keys.isEmpty()) {
+			logger.info("deleted " + keys.size() + " stale parts under s3://" + bucket + "/" + root);
+		}
+	}
+
+	private static String datasetRoot(String prefix) {
+		return prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+	}
+
+	/**
+	 * Hive partition directories: col=value/..., with the characters Hive
+	 * escapes in partition values percent-encoded.
+	 */
+	private static String partitionPath(Map<String, String> partition) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> e : partition.entrySet()) {
+			sb.append(escapePartitionValue(e.getKey())).append('=')
+					.append(e.getValue() == null ? "__HIVE_DEFAULT_PARTITION__" : escapePartitionValue(e.getValue()))
+					.append('/');
+		}
+		return sb.toString();
+	}
+
+	private static String escapePartitionValue(String value) {
+		StringBuilder sb = new StringBuilder();
+		for (char c : value.toCharArray()) {
+			if (c < 0x20 || c == 0x7f || "\"#%'*/:=?\\{[]^".indexOf(c) >= 0) {
+				sb.append(String.format("%%%02X", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Wait for a future, rethrowing the failure of the operation itself
+	 * rather than its CompletionException wrapper.
+	 */
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Write a list sorted by one of its fields, as BGZF-style blocks: each
+	 * block of about {@link #INDEX_BLOCK_SIZE} uncompressed bytes is a
+	 * separate gzip member, so the object still reads as plain gzip JSON
+	 * lines (Athena, getList()). A sidecar {@link AwsS3BlockIndex} lists the
+	 * first key and byte range of every block, for point lookups with
+	 * {@link #lookup(String, String, Class)}.
+	 * 
+	 * @param path
+	 * @param cls
+	 * @param list
+	 * @param keyField JSON property the records are sorted and looked up by
+	 * @return the index
+	 */
+	public <T> AwsS3BlockIndex putIndexedList(String path, Class<T> cls, Collection<T> list, String keyField) {
+		if (!"gzip".equals(writeCodec(path).getContentEncoding())) {
+			throw new RuntimeException("indexed lists are gzip only: " + path);
+		}
+		final List<JsonNode> sorted = list.stream().<JsonNode>map(objectMapper::valueToTree)
+				.sorted(Comparator.comparing(node -> node.path(keyField).asText()))
+				.collect(Collectors.toList());
+
+		final AwsS3BlockIndex index = new AwsS3BlockIndex();
+		index.keyField = keyField;
+		File tempLocation = cacheLocation(path + "~temp");
+		try (FileOutputStream cacheOut = cacheOutputStream(tempLocation)) {
+			ByteArrayOutputStream block = new ByteArrayOutputStream(INDEX_BLOCK_SIZE + 4096);
+			String firstKey = null;
+			String lastKey = null;
+			long records = 0;
+			for (JsonNode node : sorted) {
+				String key = node.path(keyField).asText();
+				// equal keys stay in one block, so a lookup reads a single range
+				if (block.size() >= INDEX_BLOCK_SIZE && !key.equals(lastKey)) {
+					writeIndexedBlock(cacheOut, index, firstKey, block, records);
+					block.reset();
+					records = 0;
+				}
+				if (records == 0) {
+					firstKey = key;
+				}
+				objectMapper.writeValue(block, node);
+				block.write('\n');
+				lastKey = key;
+				++records;
+			}
+			if (records > 0 || index.blocks.isEmpty()) {
+				writeIndexedBlock(cacheOut, index, firstKey, block, records);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		File cacheLocation = cacheLocation(path);
+		cacheLocation.delete();
+		tempLocation.renameTo(cacheLocation);
+		cacheUpdated(cacheLocation);
+		// the index must not reach S3 before (or without) the data
+		index.etag = new FileUpload(path, cacheLocation).upload();
+
+		try {
+			gzipWriteNow(AwsS3BlockIndex.indexKey(path), objectMapper.writeValueAsBytes(index));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return index;
+	}
+
+	private void writeIndexedBlock(OutputStream out, AwsS3BlockIndex index, String firstKey,
+			ByteArrayOutputStream block, long records) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.size() / 4 + 64);
+		try (OutputStream gzo = AwsS3ParallelGzipOutputStream.gzip(compressed, compressionLevel)) {
+			block.writeTo(gzo);
+		}
+		compressed.writeTo(out);
+		if (records > 0) {
+			AwsS3BlockIndex.Block b = new AwsS3BlockIndex.Block();
+			b.firstKey = firstKey;
+			b.offset = index.length;
+			b.length = compressed.size();
+			b.records = records;
+			index.blocks.add(b);
+		}
+		index.length += compressed.size();
+	}
+
+	/**
+	 * Find the records with the given key in an object written by
+	 * putIndexedList(), downloading only the one block that can hold them.
+	 * 
+	 * @param path
+	 * @param key
+	 * @param cls
+	 * @return the matching records, empty if there are none
+	 */
+	public <T> List<T> lookup(String path, String key, Class<T> cls) {
+		return lookup(new AwsS3FetchParams(path), key, cls);
+	}
+
+	/**
+	 * Fully parameterized implementation of lookup(): the fetch parameters
+	 * (skipStaleCheck, freshness window) apply to the index; the block itself
+	 * is always read from S3.
+	 * 
+	 * @param params
+	 * @param key
+	 * @param cls
+	 * @return
+	 */
+	public <T> List<T> lookup(AwsS3FetchParams params, String key, Class<T> cls) {
+		AwsS3BlockIndex index = blockIndex(params);
+		List<T> found = lookup(params.path, index, key, cls);
+		if (found == null) {
+			// the object was rewritten after the index we have; reload it,
+			// unconditionally since the rewrite may be within the same second
+			AwsS3FetchParams reload = new AwsS3FetchParams(params.path);
+			reload.forceDownload = true;
+			index = blockIndex(reload);
+			found = lookup(params.path, index, key, cls);
+			if (found == null) {
+				throw new RuntimeException("block index does not match s3://" + bucket + "/" + params.path);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the matching records, or null if the object's ETag or length
+	 *         does not match the index
+	 */
+	private <T> List<T> lookup(String path, AwsS3BlockIndex index, String key, Class<T> cls) {
+		final AwsS3BlockIndex.Block block = index.blockFor(key);
+		if (block == null) {
+			return Collections.emptyList();
+		}
+		final List<T> out = new ArrayList<>();
+		final GetObjectRequest req = new GetObjectRequest(bucket, path)
+				.withRange(block.offset, block.offset + block.length - 1);
+		if (index.etag != null) {
+			req.withMatchingETagConstraint(index.etag);
+		}
+		try (S3Object s3o = getObject(() -> getClient().getObject(req))) {
+			// null: the ETag no longer matches (412)
+			if (s3o == null || s3o.getObjectMetadata().getInstanceLength() != index.length) {
+				return null;
+			}
+			try (InputStream is = AwsS3Codecs.gunzip(s3o.getObjectContent());
+					MappingIterator<JsonNode> it = objectMapper.readerFor(JsonNode.class).readValues(is)) {
+				while (it.hasNext()) {
+					JsonNode node = it.next();
+					if (key.equals(node.path(index.keyField).asText())) {
+						out.add(objectMapper.treeToValue(node, cls));
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return out;
+	}
+
+	private AwsS3BlockIndex blockIndex(AwsS3FetchParams params) {
+		final String indexKey = AwsS3BlockIndex.indexKey(params.path);
+		final AwsS3FetchParams indexParams = new AwsS3FetchParams(indexKey)
+				.withSkipStaleCheck(params.skipStaleCheck)
+				.withFreshnessTtl(params.freshnessTtl);
+		indexParams.forceDownload = params.forceDownload;
+		if (params.forceDownload) {
+			blockIndexes.remove(indexKey); // the new copy may have the same file time
+		}
+		try {
+			final File file = refreshCacheFile(getClient(), indexParams);
+			final long fileTime = file.lastModified();
+			LoadedIndex loaded = blockIndexes.get(indexKey);
+			if (loaded == null || loaded.fileTime != fileTime) {
+				try (InputStream is = decode(readCodec(indexKey), diskCache.open(file))) {
+					loaded = new LoadedIndex(fileTime, objectMapper.readValue(is, AwsS3BlockIndex.class));
+				}
+				blockIndexes.put(indexKey, loaded);
+			}
+			return loaded.index;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static class LoadedIndex {
+		final long fileTime;
+		final AwsS3BlockIndex index;
+
+		LoadedIndex(long fileTime, AwsS3BlockIndex index) {
+			this.fileTime = fileTime;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * Write a JSON string to S3, compressed w/ gzip (or zstd / lz4 for keys
+	 * ending in .zst / .lz4).
+	 * 
+	 * @param path
+	 * @param data
+	 * @throws IOException
+	 */
+	public void gzipWrite(String path, String data) throws IOException {
+		this.gzipWrite(path, data.getBytes());
+	}
+
+	/**
+	 * Compress and write bytes, adding json and Content-Encoding metadata.
+	 * 
+	 * @param path
+	 * @param data
+	 * @throws IOException
+	 */
+	public void gzipWrite(String path, byte[] data) throws IOException {
+		byte[] ba = compress(path, data);
+		gzipMetaWrite(path, ba);
+		cacheWrite(cacheLocation(path), ba);
+	}
+
+	/**
+	 * gzipWrite() that uploads right away, even with write-behind on.
+	 */
+	private void gzipWriteNow(String path, byte[] data) throws IOException {
+		byte[] ba = compress(path, data);
+		upload(path, ba);
+		cacheWrite(cacheLocation(path), ba);
+	}
+
+	private byte[] compress(String path, byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		OutputStream gzo = writeCodec(path).encode(baos);
+		gzo.write(data);
+		gzo.close();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Write an already compressed blob of json data, with appropriate
+	 * meta-data.
+	 * 
+	 */
+	public void gzipMetaWrite(String path, byte[] ba) {
+		submitOrRun(path, () -> upload(path, ba));
+	}
+
+	/**
+	 * Queue an upload if write-behind is on, or run it now. A queue closed by
+	 * setWriteBehind() rejects it, and it goes to whatever replaced that queue
+	 * once the old one has drained.
+	 */
+	private void submitOrRun(String path, Runnable upload) {
+		AwsS3WriteBehind queue = writeBehind;
+		while (queue != null && !queue.submit(path, upload)) {
+			synchronized (writeBehindLock) {
+				queue = writeBehind;
+			}
+		}
+		if (queue == null) {
+			upload.run();
+		}
+	}
+
+	void upload(String path, byte[] ba) {
+		missingUntil.remove(path);
+		AmazonS3Client s3 = getClient();
+		ObjectMetadata meta = uploadMetadata(path);
+		if (ba.length > multipartThreshold) {
+			AwsS3MultipartUpload.uploadBytes(s3, bucket, path, meta, ba, partSize,
+					transferExecutor(), transferConcurrency, partRetries);
+		} else {
+			meta.setContentLength(ba.length);
+			s3.putObject(bucket, path, new ByteArrayInputStream(ba), meta);
+		}
+		logger.info(
+				"wrote " + ba.length + " bytes to s3://" + bucket + "/" + path);
+	}
+
+	/**
+	 * Upload a compressed file. Files above the multipart threshold are sent
+	 * as concurrent multipart uploads, which also lifts the single-PUT size
+	 * limit. The file is opened, and pinned in the disk cache, by this call:
+	 * a queued upload sends the contents of that moment even if the path is
+	 * replaced or evicted before it runs.
+	 * 
+	 * @param path
+	 * @param file
+	 */
+	public void gzipMetaWrite(String path, File file) {
+		FileUpload upload = new FileUpload(path, file);
+		try {
+			submitOrRun(path, upload);
+		} catch (RuntimeException e) {
+			upload.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Upload of a file through a handle opened when the upload was requested.
+	 * Runs once and releases the handle; if the upload is replaced before it
+	 * runs, closing it releases the handle instead.
+	 */
+	private class FileUpload implements Runnable, Closeable {
+
+		private final String path;
+
+		private final Closeable pin;
+
+		private final FileChannel ch;
+
+		private final long lastModified;
+
+		FileUpload(String path, File file) {
+			this.path = path;
+			this.pin = diskCache.pin(file);
+			try {
+				this.ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				this.lastModified = file.lastModified();
+			} catch (IOException e) {
+				try {
+					pin.close();
+				} catch (IOException e2) {
+					// not possible
+				}
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void run() {
+			upload();
+		}
+
+		/**
+		 * @return the ETag of the uploaded object
+		 */
+		String upload() {
+			try {
+				return AwsS3Template.this.upload(path, ch, lastModified);
+			} finally {
+				close();
+			}
+		}
+
+		@Override
+		public void close() {
+			try {
+				ch.close();
+			} catch (IOException e) {
+				// best effort
+			} finally {
+				try {
+					pin.close();
+				} catch (IOException e) {
+					// not possible
+				}
+			}
+		}
+	}
+
+	private String upload(String path, FileChannel ch, long lastModified) {
+		long started = System.currentTimeMillis();
+		missingUntil.remove(path);
+		AmazonS3Client s3 = getClient();
+		ObjectMetadata meta = uploadMetadata(path);
+		meta.setLastModified(new Date(lastModified));
+		final long length;
+		try {
+			length = ch.size();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		final String etag;
+		if (length > multipartThreshold) {
+			etag = AwsS3MultipartUpload.uploadFile(s3, bucket, path, meta, ch, length, partSize,
+					transferExecutor(), transferConcurrency, partRetries);
+		} else {
+			meta.setContentLength(length);
+			etag = s3.putObject(bucket, path, AwsS3MultipartUpload.regionInputStream(ch, 0, length), meta)
+					.getETag();
+		}
+		logger.info(
+				"wrote " + length + " bytes to s3://" + bucket + "/" + path
+				+ " in " + (System.currentTimeMillis()-started)/1000.0 + "s");
+		return etag;
+	}
+
+	private ObjectMetadata uploadMetadata(String path) {
+		ObjectMetadata meta = new ObjectMetadata();
+		meta.setContentType("application/json");
+		meta.setContentEncoding(writeCodec(path).getContentEncoding());
+		return meta;
+	}
+
+	/**
+	 * Start a multipart upload of path, for {@link AwsS3ListWriter}.
+	 */
+	AwsS3MultipartUpload multipartUpload(String path) {
+		missingUntil.remove(path);
+		return new AwsS3MultipartUpload(getClient(), bucket, path, uploadMetadata(path),
+				transferExecutor(), transferConcurrency, partRetries);
+	}
+
+	/**
+	 * Install the cache file of an object written by {@link AwsS3ListWriter}.
+	 */
+	void listWritten(String path, Path temp) throws IOException {
+		File cacheFile = cacheLocation(path);
+		Files.move(temp, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		cacheUpdated(cacheFile);
+		logger.info("streamed " + cacheFile.length() + " bytes to s3://" + bucket + "/" + path);
+	}
+
+	public void setRegion(String region) {
+		this.region = Region.getRegion(Regions.fromName(region));
+	}
+
+	public void setBucket(String bucket) {
+		this.bucket = bucket;
+	}
+
+	/**
+	 * Replace the HTTP settings of the shared S3 client. Must be called before
+	 * the first S3 operation.
+	 * 
+	 * @param clientConfiguration
+	 */
+	public void setClientConfiguration(ClientConfiguration clientConfiguration) {
+		this.clientConfiguration = clientConfiguration;
+	}
+
+	public ClientConfiguration getClientConfiguration() {
+		return clientConfiguration;
+	}
+
+	/**
+	 * Size of the HTTP connection pool, and of the hedging pool. Like the
+	 * other client settings below, the pool size is read when the shared
+	 * client is created, by the first S3 operation: changing it afterwards
+	 * only resizes the hedging pool.
+	 * 
+	 * @param maxConnections
+	 */
+	public void setMaxConnections(int maxConnections) {
+		clientConfiguration.setMaxConnections(maxConnections);
+		requestPolicy.setMaxThreads(maxConnections);
+	}
+
+	/**
+	 * Has no effect once the first S3 operation has created the client.
+	 * 
+	 * @param socketTimeout milliseconds
+	 */
+	public void setSocketTimeout(int socketTimeout) {
+		clientConfiguration.setSocketTimeout(socketTimeout);
+	}
+
+	/**
+	 * Has no effect once the first S3 operation has created the client.
+	 * 
+	 * @param connectionTimeout milliseconds
+	 */
+	public void setConnectionTimeout(int connectionTimeout) {
+		clientConfiguration.setConnectionTimeout(connectionTimeout);
+	}
+
+	/**
+	 * Has no effect once the first S3 operation has created the client.
+	 * 
+	 * @param tcpKeepAlive
+	 */
+	public void setTcpKeepAlive(boolean tcpKeepAlive) {
+		clientConfiguration.setUseTcpKeepAlive(tcpKeepAlive);
+	}
+
+	/**
+	 * Limit the size of the local s3-cache directory; least recently used
+	 * files are evicted in the background once it is exceeded. Unlimited by
+	 * default.
+	 * 
+	 * @param maxBytes
+	 */
+	public void setCacheMaxBytes(long maxBytes) {
+		diskCache.setMaxBytes(maxBytes);
+	}
+
+	/**
+	 * Keep a decompressed copy next to each cached gzip object and read it
+	 * through a memory map, trading disk space for zero-copy repeated reads
+	 * without gunzip. Applies to gzipRead, gzipStream, get, getList,
+	 * streamList and streamThroughCache.
+	 * 
+	 * @param decompressedCache
+	 */
+	public void setDecompressedCache(boolean decompressedCache) {
+		this.decompressedCache = decompressedCache;
+	}
+
+	/**
+	 * Deflate level (0-9, or -1 for the zlib default) of everything this
+	 * template compresses.
+	 * 
+	 * @param compressionLevel
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Compress putList, gzipEncode and gzipWrite output on all cores, as a
+	 * multi-member gzip file of independently compressed 1MB blocks.
+	 * 
+	 * @param parallelCompression
+	 */
+	public void setParallelCompression(boolean parallelCompression) {
+		this.parallelCompression = parallelCompression;
+	}
+
+	/**
+	 * Record encoding used by putList(): JSON lines (the default, readable by
+	 * Athena) or length-prefixed Smile / CBOR records, which are smaller and
+	 * much cheaper to parse. getList(), streamList() and streamThroughCache()
+	 * detect the encoding of what they read, whatever this setting.
+	 * 
+	 * @param encoding
+	 */
+	public void setEncoding(AwsS3Encoding encoding) {
+		this.encoding = encoding;
+	}
+
+	public AwsS3Encoding getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Number of concurrent listings used by listKeys(), listKeysWithTimestamp()
+	 * and streamKeys(prefix). With the default of 1 prefixes are paged through
+	 * sequentially; above 1 the sub-prefixes under "/" are listed in parallel,
+	 * which pays off for prefixes with many keys spread over sub-prefixes.
+	 * 
+	 * @param listConcurrency
+	 */
+	public void setListConcurrency(int listConcurrency) {
+		this.listConcurrency = listConcurrency;
+	}
+
+	/**
+	 * Enable write-behind: gzipWrite(), putList() and gzipMetaWrite() update
+	 * the local cache file and return, and the upload is queued. Writes of
+	 * several objects that refer to each other, putDataset() and
+	 * putIndexedList(), still upload before they return, so that a manifest
+	 * or index never lands before the objects it lists. Uploads
+	 * queued for the same key before the previous one started are coalesced,
+	 * so only the latest version is sent. Writers block while maxPending keys
+	 * are waiting. Pass 0 threads to turn write-behind off. Uploads queued
+	 * before a call are completed before it returns, and writes made
+	 * meanwhile wait for it, so the old and the new queue never upload the
+	 * same key at the same time. Call {@link #drain()} or {@link #close()}
+	 * before exiting, pending uploads are lost otherwise.
+	 * 
+	 * @param threads uploader threads
+	 * @param maxPending
+	 */
+	public void setWriteBehind(int threads, int maxPending) {
+		synchronized (writeBehindLock) {
+			if (threads > 0) {
+				checkOpen();
+			}
+			AwsS3WriteBehind previous = writeBehind;
+			try {
+				if (previous != null) {
+					previous.close();
+				}
+			} finally {
+				writeBehind = threads > 0 ? new AwsS3WriteBehind(threads, maxPending) : null;
+			}
+		}
+	}
+
+	/**
+	 * @return the write-behind queue, or null if write-behind is off
+	 */
+	public AwsS3WriteBehind getWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * Wait until all write-behind uploads queued so far are in S3; does
+	 * nothing when write-behind is off.
+	 * 
+	 * @throws RuntimeException the first upload failure since the last drain
+	 */
+	public void drain() {
+		AwsS3WriteBehind queue = writeBehind;
+		if (queue != null) {
+			queue.drain();
+		}
+	}
+
+	/**
+	 * Hedging and retry settings for GETs, all off by default, e.g.
+	 * {@code s3.getRequestPolicy().setHedgePercentile(0.95)}.
+	 * 
+	 * @return
+	 */
+	public AwsS3RequestPolicy getRequestPolicy() {
+		return requestPolicy;
+	}
+
+	/**
+	 * Adaptive per-prefix limit on concurrent requests, shared by every
+	 * request of this template. Throttling is always counted; enable the
+	 * limit itself with {@code getConcurrencyLimiter().setEnabled(true)}.
+	 * 
+	 * @return
+	 */
+	public AwsS3ConcurrencyLimiter getConcurrencyLimiter() {
+		return concurrencyLimiter;
+	}
+
+	/**
+	 * The local cache, including its hit/miss/eviction counters.
+	 * 
+	 * @return
+	 */
+	public AwsS3DiskCache getDiskCache() {
+		return diskCache;
 	}
 
 	/**
-	 * Write JSON to S3, in one-per-line Athena-compatible format or for
-	 * retrieval with getList(). with Optional caching and Improved memory
-	 * utilization
+	 * Uploads larger than this many bytes use concurrent multipart uploads.
 	 * 
-	 * @param path
-	 * @param list
+	 * @param multipartThreshold
 	 */
-	public void putList(String path, Collection<JsonNode> list, boolean cache) {
-		try {
-			byte[] ba = gzipEncode(list);
-			gzipMetaWrite(path, ba);
-			if (cache) {
-				cacheWrite(cacheLocation(path), ba);
-			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+	public void setMultipartThreshold(long multipartThreshold) {
+		this.multipartThreshold = multipartThreshold;
 	}
 
-	public byte[] gzipEncode(
-			Collection<JsonNode> list) throws IOException, JsonGenerationException, JsonMappingException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		GZIPOutputStream gzo = new GZIPOutputStream(baos);
+	/**
+	 * Downloads larger than this many bytes are fetched as concurrent byte
+	 * ranges of partSize bytes each.
+	 * 
+	 * @param rangeThreshold
+	 */
+	public void setRangeThreshold(long rangeThreshold) {
+		this.rangeThreshold = rangeThreshold;
+	}
 
-		for (JsonNode item : list) {
-			byte[] b = objectMapper.writeValueAsBytes(item);
-			gzo.write(b);
-			gzo.write('\n');
+	/**
+	 * Size of each part of a multipart upload or ranged download, at least
+	 * 5MB.
+	 * 
+	 * @param partSize
+	 */
+	public void setPartSize(long partSize) {
+		if (partSize < AwsS3MultipartUpload.MIN_PART_SIZE) {
+			throw new IllegalArgumentException("part size must be at least "
+					+ AwsS3MultipartUpload.MIN_PART_SIZE + " bytes");
 		}
-
-		gzo.close();
-		byte[] ba = baos.toByteArray();
-		return ba;
+		this.partSize = partSize;
 	}
 
 	/**
-	 * Write a JSON string to S3, compressed w/ gzip.
+	 * Maximum number of parts transferred concurrently. Must be called before
+	 * the first multipart transfer.
 	 * 
-	 * @param path
-	 * @param data
-	 * @throws IOException
+	 * @param transferConcurrency
 	 */
-	public void gzipWrite(String path, String data) throws IOException {
-		this.gzipWrite(path, data.getBytes());
+	public void setTransferConcurrency(int transferConcurrency) {
+		this.transferConcurrency = transferConcurrency;
 	}
 
 	/**
-	 * Compress and write bytes, adding json-gzip metadata.
+	 * How many times a failed part is retried before the transfer is aborted.
 	 * 
-	 * @param path
-	 * @param data
-	 * @throws IOException
+	 * @param partRetries
 	 */
-	public void gzipWrite(String path, byte[] data) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		GZIPOutputStream gzo = new GZIPOutputStream(baos);
-		gzo.write(data);
-		gzo.close();
-		byte[] ba = baos.toByteArray();
-		gzipMetaWrite(path, ba);
-		cacheWrite(cacheLocation(path), ba);
+	public void setPartRetries(int partRetries) {
+		this.partRetries = partRetries;
 	}
 
 	/**
-	 * Write an already compressed blob of json data, with appropriate
-	 * meta-data.
+	 * Number of threads running *Async operations. Must be called before the
+	 * first async operation.
 	 * 
+	 * @param asyncConcurrency
 	 */
-	public void gzipMetaWrite(String path, byte[] ba) {
-		AmazonS3Client s3 = getClient();
-		ObjectMetadata meta = new ObjectMetadata();
-		meta.setContentLength(ba.length);
-		meta.setContentType("application/json");
-		meta.setContentEncoding("gzip");
-		s3.putObject(bucket, path, new ByteArrayInputStream(ba), meta);
-		logger.info(
-				"wrote " + ba.length + " bytes to s3://" + bucket + "/" + path);
+	public void setAsyncConcurrency(int asyncConcurrency) {
+		this.asyncConcurrency = asyncConcurrency;
 	}
 
-	public void gzipMetaWrite(String path, File file) {
-		long started = System.currentTimeMillis();
-		AmazonS3Client s3 = getClient();
-		ObjectMetadata meta = new ObjectMetadata();
-		long length = file.length();
-		meta.setContentLength(length);
-		meta.setContentType("application/json");
-		meta.setContentEncoding("gzip");
-		meta.setLastModified(new Date(file.lastModified()));
-		try(FileInputStream fis = new FileInputStream(file)) {
-			s3.putObject(bucket, path, fis, meta);
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+	/**
+	 * Run *Async operations on a caller-managed executor instead of the
+	 * template's own pool.
+	 * 
+	 * @param executor
+	 */
+	public synchronized void setAsyncExecutor(ExecutorService executor) {
+		if (asyncExecutor != null) {
+			asyncExecutor.close();
 		}
-		logger.info(
-				"wrote " + length + " bytes to s3://" + bucket + "/" + path
-				+ " in " + (System.currentTimeMillis()-started)/1000.0 + "s");
+		asyncExecutor = new AwsS3AsyncExecutor(executor);
 	}
 
-	public void setRegion(String region) {
-		this.region = Region.getRegion(Regions.fromName(region));
+	/**
+	 * Default timeout of *Async operations in milliseconds, 0 for none.
+	 * 
+	 * @param asyncTimeout
+	 */
+	public void setAsyncTimeout(long asyncTimeout) {
+		this.asyncTimeout = asyncTimeout;
 	}
 
-	public void setBucket(String bucket) {
-		this.bucket = bucket;
+	synchronized ExecutorService transferExecutor() {
+		checkOpen();
+		if (transferExecutor == null) {
+			transferExecutor = new ThreadPoolExecutor(transferConcurrency, transferConcurrency,
+					60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreadFactory("s3-transfer"));
+			transferExecutor.allowCoreThreadTimeOut(true);
+		}
+		return transferExecutor;
+	}
+
+	static ThreadFactory daemonThreadFactory(String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
 	}
 
 	/**
@@ -588,6 +2142,12 @@ public class AwsS3Template {
 	}
 
 	public void listKeys(String prefix, Consumer<String> out) {
+		if (listConcurrency > 1) {
+			try (Stream<List<S3ObjectSummary>> pages = streamKeys(prefix, "/", true)) {
+				pages.forEach(page -> page.forEach(summary -> out.accept(summary.getKey())));
+			}
+			return;
+		}
 		AmazonS3Client s3client = getClient();
 		final ListObjectsV2Request req = new ListObjectsV2Request()
 				.withBucketName(bucket).withPrefix(prefix);
@@ -608,6 +2168,12 @@ public class AwsS3Template {
 	 * @param out
 	 */
 	public void listKeysWithTimestamp(String prefix, BiConsumer<String, Date> out) {
+		if (listConcurrency > 1) {
+			try (Stream<List<S3ObjectSummary>> pages = streamKeys(prefix, "/", true)) {
+				pages.forEach(page -> page.forEach(summary -> out.accept(summary.getKey(), summary.getLastModified())));
+			}
+			return;
+		}
 		AmazonS3Client s3client = getClient();
 		final ListObjectsV2Request req = new ListObjectsV2Request()
 				.withBucketName(bucket).withPrefix(prefix);
@@ -622,27 +2188,368 @@ public class AwsS3Template {
 		} while (result.isTruncated() == true);
 	}
 
+	/**
+	 * Return the pooled client shared by all operations of this template. The
+	 * client is owned by the template: do not shut it down, call
+	 * {@link #close()} when the template is no longer needed.
+	 * 
+	 * @return
+	 */
 	public AmazonS3Client getClient() {
-		AmazonS3Client s3client = new AmazonS3Client(awsCredentials);
 		if (region == null) {
 			region = Region.getRegion(Regions
 					.fromName(new DefaultAwsRegionProviderChain().getRegion()));
 		}
-		s3client.setRegion(region);
-		return s3client;
+		return clientRegistry().getClient(bucket, region);
 	}
 
-	public boolean exists(String path) {
-		AmazonS3Client client = getClient();
+	private synchronized AwsS3ClientRegistry clientRegistry() {
+		checkOpen();
+		if (clientRegistry == null) {
+			clientRegistry = new AwsS3ClientRegistry(awsCredentials, clientConfiguration);
+			clientRegistry.addRequestHandler(concurrencyLimiter);
+		}
+		return clientRegistry;
+	}
+
+	/**
+	 * Release the pooled S3 connections and the transfer and async threads.
+	 * Closing is final: afterwards operations that need the client or a
+	 * thread pool throw IllegalStateException. Closing again does nothing.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+		}
+		// uploads still need the client and executors, so finish them first
 		try {
-			return exists(client, path);
+			setWriteBehind(0, 0);
+		} finally {
+			synchronized (this) {
+				closed = true;
+				closeExecutors();
+			}
+		}
+	}
+
+	private synchronized void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("S3 template is closed");
+		}
+	}
+
+	private void closeExecutors() {
+		diskCache.close();
+		requestPolicy.close();
+		if (asyncExecutor != null) {
+			asyncExecutor.close();
+			asyncExecutor = null;
+		}
+		if (datasetExecutor != null) {
+			datasetExecutor.close();
+			datasetExecutor = null;
 		}
-		finally {
-			client.shutdown();
+		if (transferExecutor != null) {
+			transferExecutor.shutdown();
+			transferExecutor = null;
 		}
+		if (clientRegistry != null) {
+			clientRegistry.close();
+			clientRegistry = null;
+		}
+	}
+
+	public boolean exists(String path) {
+		return exists(getClient(), path);
 	}
 	public boolean exists(AmazonS3Client s3client, String path) {
-		return s3client.doesObjectExist(bucket, path);
+		if (isKnownMissing(path)) {
+			return false;
+		}
+		boolean exists = s3client.doesObjectExist(bucket, path);
+		if (!exists) {
+			knownMissing(path);
+		}
+		return exists;
+	}
+
+	/**
+	 * Check the existence of many keys with a few LIST requests instead of one
+	 * HEAD per key. Keys are grouped by "directory" and each group is answered
+	 * by listing its common prefix; when listing a group would take more
+	 * pages than there are unanswered keys, the rest fall back to HEAD.
+	 * 
+	 * @param paths
+	 * @return existence of each key
+	 */
+	public Map<String, Boolean> existsAll(Collection<String> paths) {
+		final Map<String, Boolean> out = new HashMap<>();
+		final Map<String, List<String>> groups = new TreeMap<>();
+		for (String path : new TreeSet<>(paths)) {
+			if (isKnownMissing(path)) {
+				out.put(path, false);
+			} else {
+				groups.computeIfAbsent(path.substring(0, path.lastIndexOf('/') + 1), k -> new ArrayList<>())
+						.add(path);
+			}
+		}
+		AmazonS3Client s3client = getClient();
+		for (List<String> group : groups.values()) {
+			existsByListing(s3client, group, out);
+		}
+		return out;
+	}
+
+	private void existsByListing(AmazonS3Client s3client, List<String> sortedGroup, Map<String, Boolean> out) {
+		final String first = sortedGroup.get(0);
+		final String last = sortedGroup.get(sortedGroup.size() - 1);
+		int common = 0;
+		while (common < first.length() && common < last.length()
+				&& first.charAt(common) == last.charAt(common)) {
+			++common;
+		}
+		final ListObjectsV2Request req = new ListObjectsV2Request()
+				.withBucketName(bucket).withPrefix(first.substring(0, common));
+		final Set<String> remaining = new HashSet<>(sortedGroup);
+		boolean complete = false;
+		int pages = 0;
+		while (!complete && !remaining.isEmpty() && pages < remaining.size()) {
+			ListObjectsV2Result result = s3client.listObjectsV2(req);
+			++pages;
+			List<S3ObjectSummary> summaries = result.getObjectSummaries();
+			for (S3ObjectSummary objectSummary : summaries) {
+				if (remaining.remove(objectSummary.getKey())) {
+					out.put(objectSummary.getKey(), true);
+				}
+			}
+			complete = !result.isTruncated() || (!summaries.isEmpty()
+					&& summaries.get(summaries.size() - 1).getKey().compareTo(last) >= 0);
+			req.setContinuationToken(result.getNextContinuationToken());
+		}
+		for (String path : remaining) {
+			out.put(path, complete ? false : exists(s3client, path));
+			if (complete) {
+				knownMissing(path);
+			}
+		}
+	}
+
+	/**
+	 * Remember for the given number of milliseconds that a key does not
+	 * exist, so that repeated existence checks and nonexistentAsNull reads of
+	 * missing keys don't go to S3. Writes through this template clear the
+	 * entry. Disabled (0) by default.
+	 * 
+	 * @param existenceCacheTtl
+	 */
+	public void setExistenceCacheTtl(long existenceCacheTtl) {
+		this.existenceCacheTtl = existenceCacheTtl;
+	}
+
+	/**
+	 * Number of keys to remember ETags and validation times for, and
+	 * missing keys (see {@link #setExistenceCacheTtl(long)}); the least
+	 * recently used are forgotten beyond that, and are then revalidated by
+	 * modification time. 100000 by default.
+	 * 
+	 * @param maxTrackedObjects
+	 */
+	public void setMaxTrackedObjects(int maxTrackedObjects) {
+		this.maxTrackedObjects = maxTrackedObjects;
+	}
+
+	/**
+	 * A thread-safe map that drops its least recently used entries beyond
+	 * max.
+	 */
+	private static <K, V> Map<K, V> lruMap(IntSupplier max) {
+		return Collections.synchronizedMap(new LruMap<>(max));
+	}
+
+	private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient IntSupplier max;
+
+		LruMap(IntSupplier max) {
+			super(16, 0.75f, true);
+			this.max = max;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > max.getAsInt();
+		}
+	}
+
+	private boolean isKnownMissing(String path) {
+		Long until = missingUntil.get(path);
+		if (until == null) {
+			return false;
+		}
+		if (until < System.currentTimeMillis()) {
+			missingUntil.remove(path, until);
+			return false;
+		}
+		return true;
+	}
+
+	private void knownMissing(String path) {
+		if (existenceCacheTtl > 0) {
+			missingUntil.put(path, System.currentTimeMillis() + existenceCacheTtl);
+		}
+	}
+
+	private static boolean isNotFound(AmazonS3Exception e) {
+		return e.getStatusCode() == 404;
+	}
+
+	/**
+	 * Run any template operation on the async executor, e.g.
+	 * {@code supplyAsync(() -> s3.get(key, false), 5, TimeUnit.SECONDS)}.
+	 * Cancelling the future or exceeding the timeout interrupts the operation.
+	 * 
+	 * @param operation
+	 * @param timeout 0 for no timeout
+	 * @param unit
+	 * @return
+	 */
+	public <T> CompletableFuture<T> supplyAsync(Supplier<T> operation, long timeout, TimeUnit unit) {
+		return asyncExecutor().supply(operation, timeout, unit);
+	}
+
+	private <T> CompletableFuture<T> supplyAsync(Supplier<T> operation) {
+		return supplyAsync(operation, asyncTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	public CompletableFuture<String> gzipReadAsync(AwsS3FetchParams params) {
+		return supplyAsync(() -> gzipRead(params));
+	}
+
+	public <T> CompletableFuture<List<T>> getListAsync(Class<T> cls, AwsS3FetchParams parms) {
+		return supplyAsync(() -> getList(cls, parms));
+	}
+
+	public <T> CompletableFuture<File> putListAsync(String path, Class<T> cls, Collection<T> list) {
+		return supplyAsync(() -> putList(path, cls, list));
+	}
+
+	public CompletableFuture<Void> gzipMetaWriteAsync(String path, File file) {
+		return supplyAsync(() -> {
+			gzipMetaWrite(path, file);
+			return null;
+		});
+	}
+
+	/**
+	 * Download or revalidate many keys into the local cache, at most
+	 * parallelism at a time, e.g. to warm the cache at startup. Waits until
+	 * every key has been fetched or has failed.
+	 * 
+	 * @param params one per key; skipStaleCheck, freshnessTtl and
+	 *            nonexistentAsNull apply as for a single fetch
+	 * @param parallelism
+	 * @return the cache file or failure of each key
+	 */
+	public AwsS3FetchResults fetchAll(Collection<AwsS3FetchParams> params, int parallelism) {
+		long started = System.currentTimeMillis();
+		final AwsS3FetchResults results = new AwsS3FetchResults();
+		for (Map.Entry<String, CompletableFuture<File>> fetch : fetchAllAsync(params, parallelism).entrySet()) {
+			try {
+				results.files.put(fetch.getKey(), fetch.getValue().join());
+			} catch (CompletionException e) {
+				logger.log(Level.WARNING, "failed to fetch " + fetch.getKey(), e.getCause());
+				results.failures.put(fetch.getKey(), e.getCause());
+			}
+		}
+		logger.info("fetchAll s3://" + bucket + ": " + results + " in "
+				+ (System.currentTimeMillis() - started) / 1000.0 + "s");
+		return results;
+	}
+
+	/**
+	 * fetchAll() without waiting: the future of each key completes as soon as
+	 * that key is in the cache, so keys can be used as they land, e.g.
+	 * {@code fetchAllAsync(params, 32).forEach((key, f) -> f.thenAccept(...))}.
+	 * Fetches run on the async executor; no more than parallelism of them
+	 * are queued or running at any time.
+	 * 
+	 * @param params
+	 * @param parallelism
+	 * @return the future cache file of each key, in the order given
+	 */
+	public Map<String, CompletableFuture<File>> fetchAllAsync(Collection<AwsS3FetchParams> params,
+			int parallelism) {
+		final Map<String, CompletableFuture<File>> out = new LinkedHashMap<>();
+		final Queue<AwsS3FetchParams> queue = new ConcurrentLinkedQueue<>();
+		for (AwsS3FetchParams param : params) {
+			if (out.putIfAbsent(param.path, new CompletableFuture<>()) == null) {
+				queue.add(param);
+			}
+		}
+		for (int i = 0; i < Math.max(1, parallelism); i++) {
+			fetchNext(queue, out);
+		}
+		return Collections.unmodifiableMap(out);
+	}
+
+	/**
+	 * Start the next queued fetch of fetchAllAsync(); each one starts its
+	 * successor when it ends, which keeps the number in flight constant.
+	 */
+	private void fetchNext(Queue<AwsS3FetchParams> queue, Map<String, CompletableFuture<File>> out) {
+		AwsS3FetchParams param;
+		while ((param = queue.poll()) != null) {
+			final AwsS3FetchParams next = param;
+			final CompletableFuture<File> result = out.get(next.path);
+			try {
+				supplyAsync(() -> fetchToCache(next)).whenComplete((file, error) -> {
+					fetchNext(queue, out);
+					if (error == null) {
+						result.complete(file);
+					} else {
+						result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+					}
+				});
+				return;
+			} catch (RuntimeException e) { // executor closed
+				result.completeExceptionally(e);
+			}
+		}
+	}
+
+	public CompletableFuture<Boolean> existsAsync(String path) {
+		return supplyAsync(() -> exists(path));
+	}
+
+	public CompletableFuture<List<String>> listKeysAsync(String prefix) {
+		return supplyAsync(() -> listKeys(prefix));
+	}
+
+	/**
+	 * Runs the part uploads and downloads of datasets. Separate from the
+	 * async pool, since putDataset() and friends may themselves run there and
+	 * wait for their parts, and from the transfer pool, since a part may be
+	 * large enough to wait for ranges or multipart parts itself.
+	 */
+	private synchronized AwsS3AsyncExecutor datasetExecutor() {
+		checkOpen();
+		if (datasetExecutor == null) {
+			datasetExecutor = new AwsS3AsyncExecutor(transferConcurrency, "s3-dataset");
+		}
+		return datasetExecutor;
+	}
+
+	private synchronized AwsS3AsyncExecutor asyncExecutor() {
+		checkOpen();
+		if (asyncExecutor == null) {
+			asyncExecutor = new AwsS3AsyncExecutor(asyncConcurrency);
+		}
+		return asyncExecutor;
 	}
 
         public AwsS3Template(ObjectMapper objectMapper,
@@ -670,45 +2577,11 @@ public class AwsS3Template {
 	public <T> Stream<T> streamThroughCache(String path, Class<T> cls, boolean skipCheck) {
 		try {
 			File cacheFile = cacheLocation(path);
-			final boolean CACHE_FILE_EXISTS = cacheFile.exists();
-
-			if (skipCheck && CACHE_FILE_EXISTS) {
-				return unzipStream(cacheFile, cls);
-			}
-
-			AmazonS3Client s3 = getClient();
-
-			final GetObjectRequest getObjectRequest
-					= new GetObjectRequest(bucket, path);
-
-			if (CACHE_FILE_EXISTS) {
-				final long fileTime = cacheFile.lastModified();
-				getObjectRequest.setModifiedSinceConstraint(new Date(fileTime));
-			}
 
-			long started = System.currentTimeMillis();
-			
-			try (S3Object s3o = s3.getObject(getObjectRequest)) {
-				if (s3o == null && CACHE_FILE_EXISTS) {
-					logger.info(path
-							+ ": cached file is still valid");
-					return unzipStream(cacheFile, cls);
-				} else {
-					Files.createDirectories(cacheFile.toPath().getParent());
-					File temp = cacheLocation(path + "~temp");
-					try (InputStream is = s3o.getObjectContent();
-						 FileOutputStream fos = new FileOutputStream(temp)) {
-						IOUtils.copy(is, fos);
-						fos.close();
-						cacheFile.delete();
-						temp.renameTo(cacheFile); // use rename to prevent partially-written crash files
-						logger.info(
-								"fetched " + cacheFile.length() + " bytes from s3://" + bucket + "/" + path
-								+ " in " + (System.currentTimeMillis()-started)/1000.0 + "s");
-						return unzipStream(cacheFile, cls);
-					}
-				}
+			if (!(skipCheck && cacheFile.exists())) {
+				cacheFill(getClient(), path, cacheFile, false);
 			}
+			return unzipStream(cacheFile, cls);
 
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -718,21 +2591,26 @@ public class AwsS3Template {
 	@SuppressWarnings("resource")
 	protected <T> Stream<T> unzipStream(File cacheFile, Class<T> cls) throws FileNotFoundException {
 		try {
-			return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(cacheFile))))
-					.lines()
-					.map(json -> {
-						try {
-							return objectMapper.readValue(json, cls);
-						} catch (IOException e) {
-							throw new RuntimeException(e);
-						}
-					});
+			InputStream is = decompressedCache ? openDecompressed(null, cacheFile)
+					: AwsS3Codecs.decodeDetected(diskCache.open(cacheFile));
+			return decodeList(is, cls);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Stream the keys under prefix, one page at a time. Pages come in key
+	 * order; with a list concurrency above 1 sub-prefixes are listed in
+	 * parallel, see {@link #streamKeys(String, String, boolean)}.
+	 * 
+	 * @param prefix
+	 * @return
+	 */
 	public Stream<List<S3ObjectSummary>> streamKeys(String prefix) {
+		if (listConcurrency > 1) {
+			return streamKeys(prefix, "/", true);
+		}
 		return StreamSupport.stream(new AbstractSpliterator<List<S3ObjectSummary>>(Long.MAX_VALUE, 0) {
 			
 			AmazonS3Client client = getClient();
@@ -750,13 +2628,43 @@ public class AwsS3Template {
 				action.accept(result.getObjectSummaries());
 				if(!result.isTruncated()) {
 					req = null;
-					client.shutdown();
-					client = null;
 				}
 				return true;
 			}
 		}, false);
 	}
 
+	/**
+	 * List a prefix concurrently, sharded by the sub-prefixes found with the
+	 * delimiter. Listing starts right away, and pages are returned as they
+	 * arrive: in key order if ordered is set, otherwise as soon as any shard
+	 * produces one. Close the stream to stop listing early.
+	 * 
+	 * @param prefix
+	 * @param delimiter usually "/"
+	 * @param ordered
+	 * @return
+	 */
+	public Stream<List<S3ObjectSummary>> streamKeys(String prefix, String delimiter, boolean ordered) {
+		return AwsS3ParallelLister.byDelimiter(getClient(), bucket, prefix, delimiter,
+				Math.max(listConcurrency, 2), ordered);
+	}
+
+	/**
+	 * List a prefix concurrently, sharded by caller-supplied split keys, for
+	 * flat key spaces without sub-prefixes (e.g. splits at "0".."f" for keys
+	 * starting with a hex hash after the prefix). Splits are relative to the
+	 * prefix; shard i covers keys after prefix + splits[i-1] up to and
+	 * including prefix + splits[i].
+	 * 
+	 * @param prefix
+	 * @param splits
+	 * @param ordered
+	 * @return
+	 */
+	public Stream<List<S3ObjectSummary>> streamKeys(String prefix, List<String> splits, boolean ordered) {
+		return AwsS3ParallelLister.bySplits(getClient(), bucket, prefix, splits,
+				Math.max(listConcurrency, 2), ordered);
+	}
 
 }
@@ -0,0 +1,190 @@
+package com.github.atramos.jaws;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue of pending uploads, coalesced per key: an upload queued for a key
+ * that is still waiting replaces the waiting one, so a key rewritten many
+ * times in a row is uploaded once, with its latest contents. Uploads of the
+ * same key never run concurrently, so S3 always ends up with the last
+ * version.
+ *
+ * The number of waiting keys is bounded; writers of new keys block while the
+ * queue is full. Failures are logged and rethrown by the next
+ * {@link #drain()}.
+ */
+public class AwsS3WriteBehind implements Closeable {
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final LinkedHashMap<String, Runnable> pending = new LinkedHashMap<>();
+
+	private final Set<String> inFlight = new HashSet<>();
+
+	private final int maxPending;
+
+	private final ExecutorService workers;
+
+	private long uploaded;
+
+	private long coalesced;
+
+	private RuntimeException failure;
+
+	private boolean closed;
+
+	AwsS3WriteBehind(int threads, int maxPending) {
+		this.maxPending = maxPending;
+		this.workers = Executors.newFixedThreadPool(threads, AwsS3Template.daemonThreadFactory("s3-write-behind"));
+		for (int i = 0; i < threads; i++) {
+			workers.execute(this::work);
+		}
+	}
+
+	/**
+	 * Queue the upload of a key, replacing any upload of the same key that
+	 * has not started yet. A replaced upload that is {@link Closeable} is
+	 * closed, to release what it holds.
+	 *
+	 * @return false, without taking the upload, if the queue is closed
+	 */
+	synchronized boolean submit(String key, Runnable upload) {
+		try {
+			while (!closed && !pending.containsKey(key) && pending.size() >= maxPending) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		if (closed) {
+			return false;
+		}
+		Runnable replaced = pending.put(key, upload);
+		if (replaced != null) {
+			++coalesced;
+			if (replaced instanceof Closeable) {
+				try {
+					((Closeable) replaced).close();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "failed to release replaced upload: " + key, e);
+				}
+			}
+		}
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Wait until every queued upload has completed.
+	 *
+	 * @throws RuntimeException the first upload failure since the last drain
+	 */
+	public synchronized void drain() {
+		try {
+			while (!pending.isEmpty() || !inFlight.isEmpty()) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		RuntimeException e = failure;
+		failure = null;
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	/**
+	 * Upload whatever is queued, then stop the uploader threads.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			drain();
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	public synchronized int getPending() {
+		return pending.size() + inFlight.size();
+	}
+
+	public synchronized long getUploaded() {
+		return uploaded;
+	}
+
+	/**
+	 * Uploads skipped because a newer version of the same key was queued
+	 * before they started.
+	 */
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+
+	private void work() {
+		Map.Entry<String, Runnable> task;
+		while ((task = next()) != null) {
+			try {
+				task.getValue().run();
+				synchronized (this) {
+					++uploaded;
+				}
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "write-behind upload failed: " + task.getKey(), e);
+				synchronized (this) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			} finally {
+				synchronized (this) {
+					inFlight.remove(task.getKey());
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The oldest queued upload whose key is not being uploaded already, or
+	 * null once closed and empty.
+	 */
+	private synchronized Map.Entry<String, Runnable> next() {
+		try {
+			while (true) {
+				for (Iterator<Map.Entry<String, Runnable>> it = pending.entrySet().iterator(); it.hasNext();) {
+					Map.Entry<String, Runnable> e = it.next();
+					if (inFlight.add(e.getKey())) {
+						it.remove();
+						notifyAll();
+						return new AbstractMap.SimpleImmutableEntry<>(e);
+					}
+				}
+				if (closed && pending.isEmpty()) {
+					return null;
+				}
+				wait();
+			}
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.github.atramos.jaws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Incremental, concurrent extraction of a zip archive already on disk.
+ *
+ * The central directory gives the size, CRC and time of every entry up front,
+ * so files that are already extracted and unchanged are skipped, and the rest
+ * are inflated in parallel. Each file is written to a temp file and renamed
+ * into place. Entries that would land outside the target directory ("zip
+ * slip") are rejected.
+ */
+class AwsS3ZipExtractor {
+
+	private static final Logger logger = Logger.getLogger(AwsS3ZipExtractor.class.getName());
+
+	/**
+	 * @param archive
+	 * @param target directory to extract into, created if needed
+	 * @param executor runs the per-entry extraction
+	 * @return number of files written (entries not already up to date)
+	 * @throws IOException
+	 */
+	static int extract(Path archive, Path target, ExecutorService executor) throws IOException {
+		final Path root = target.toAbsolutePath().normalize();
+		Files.createDirectories(root);
+		int skipped = 0;
+		final List<Future<?>> tasks = new ArrayList<>();
+		try (ZipFile zip = new ZipFile(archive.toFile())) {
+			try {
+				for (ZipEntry entry : Collections.list(zip.entries())) {
+					final Path out = root.resolve(entry.getName()).normalize();
+					if (!out.startsWith(root) || out.equals(root)) {
+						throw new IOException("zip entry outside of target directory: " + entry.getName());
+					}
+					if (entry.isDirectory()) {
+						Files.createDirectories(out);
+					} else if (isUpToDate(out, entry)) {
+						++skipped;
+					} else {
+						tasks.add(executor.submit(() -> {
+							extractEntry(zip, entry, out);
+							return null;
+						}));
+					}
+				}
+				for (Future<?> task : tasks) {
+					task.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			} finally {
+				for (Future<?> task : tasks) {
+					task.cancel(true);
+				}
+			}
+		}
+		logger.fine("unzipped " + archive + ": " + tasks.size() + " files extracted, " + skipped + " unchanged");
+		return tasks.size();
+	}
+
+	private static void extractEntry(ZipFile zip, ZipEntry entry, Path out) throws IOException {
+		Files.createDirectories(out.getParent());
+		Path temp = Files.createTempFile(out.getParent(), out.getFileName().toString(), "~temp");
+		try {
+			try (InputStream is = zip.getInputStream(entry)) {
+				Files.copy(is, temp, StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (entry.getTime() != -1) {
+				Files.setLastModifiedTime(temp, FileTime.fromMillis(entry.getTime()));
+			}
+			Files.move(temp, out, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Same size and timestamp as the entry, or failing the timestamp, same
+	 * CRC.
+	 */
+	private static boolean isUpToDate(Path out, ZipEntry entry) throws IOException {
+		if (!Files.isRegularFile(out) || Files.size(out) != entry.getSize()) {
+			return false;
+		}
+		if (entry.getTime() != -1 && Files.getLastModifiedTime(out).toMillis() == entry.getTime()) {
+			return true;
+		}
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[65536];
+		try (InputStream is = Files.newInputStream(out)) {
+			for (int n; (n = is.read(buf)) > 0;) {
+				crc.update(buf, 0, n);
+			}
+		}
+		return crc.getValue() == entry.getCrc();
+	}
+}
@@ -0,0 +1,98 @@
+package com.github.atramos.jaws;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AwsS3BlockIndexTest {
+
+	public static class Row {
+		public String id;
+
+		public String payload;
+	}
+
+	FakeS3Client s3 = new FakeS3Client();
+
+	AwsS3Template template = s3.template();
+
+	@After
+	public void close() {
+		template.close();
+	}
+
+	static List<Row> rows(int n) {
+		List<Row> rows = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			Row row = new Row();
+			row.id = String.format("k%06d", i);
+			row.payload = "payload of row " + i + " " + Integer.toHexString(i * 7919);
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Rows of identical size, ids first to first + n - 1.
+	 */
+	static List<Row> fixedRows(int first, int n) {
+		List<Row> rows = new ArrayList<>();
+		for (int i = first; i < first + n; i++) {
+			Row row = new Row();
+			row.id = String.format("k%06d", i);
+			row.payload = String.format("payload of row %08d", i);
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	@Test
+	public void lookupFindsRecordsInBlocks() {
+		AwsS3BlockIndex index = template.putIndexedList("rows.json.gz", Row.class, rows(20000), "id");
+		Assert.assertTrue(index.blocks.size() > 1);
+
+		List<Row> found = template.lookup(new AwsS3FetchParams("rows.json.gz").withNoSave(true), "k012345", Row.class);
+		Assert.assertEquals(1, found.size());
+		Assert.assertEquals("k012345", found.get(0).id);
+		Assert.assertEquals(0, template.lookup("rows.json.gz", "nope", Row.class).size());
+	}
+
+	@Test
+	public void wholeObjectReadsEveryBlockFromNetworkStream() {
+		template.putIndexedList("rows.json.gz", Row.class, rows(20000), "id");
+
+		// noSave reads straight from the (available() == 0) S3 stream
+		List<Row> all = template.getList(Row.class, new AwsS3FetchParams("rows.json.gz").withNoSave(true));
+		Assert.assertEquals(20000, all.size());
+		Assert.assertEquals("k019999", all.get(all.size() - 1).id);
+	}
+
+	@Test
+	public void rewriteOfSameLengthIsDetectedByEtag() {
+		// stored (level 0) blocks: the size depends on the input size only
+		template.setCompressionLevel(0);
+		template.putIndexedList("rows.json.gz", Row.class, fixedRows(0, 20000), "id");
+		Assert.assertEquals(1, template.lookup("rows.json.gz", "k010500", Row.class).size());
+
+		// another process: same objects, but a cache directory of its own
+		AwsS3Template writer = s3.template();
+		writer.setCompressionLevel(0);
+		try {
+			int before = s3.data("rows.json.gz").length;
+			AwsS3BlockIndex index = writer.putIndexedList("rows.json.gz", Row.class, fixedRows(1000, 20000), "id");
+			Assert.assertEquals(before, s3.data("rows.json.gz").length);
+			Assert.assertNotNull(index.etag);
+		} finally {
+			writer.close();
+		}
+
+		// the cached index now points k010500 at a block holding other keys
+		List<Row> found = template.lookup(new AwsS3FetchParams("rows.json.gz").withSkipStaleCheck(true),
+				"k010500", Row.class);
+		Assert.assertEquals(1, found.size());
+		Assert.assertEquals("k010500", found.get(0).id);
+	}
+}
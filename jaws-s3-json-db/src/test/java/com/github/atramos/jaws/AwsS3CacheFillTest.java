@@ -0,0 +1,222 @@
+package com.github.atramos.jaws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AwsS3CacheFillTest {
+
+	FakeS3Client s3 = new FakeS3Client();
+
+	AwsS3Template template = s3.template();
+
+	@After
+	public void close() {
+		template.close();
+	}
+
+	String read(AwsS3Template t, String key) {
+		try (InputStream is = t.openInputStream(new AwsS3FetchParams(key))) {
+			return new String(FakeS3Client.readAll(is), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Test
+	public void concurrentReadersShareOneDownload() throws Exception {
+		s3.put("k/a", "hello".getBytes(StandardCharsets.UTF_8));
+		s3.getDelay = 200;
+		ExecutorService pool = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<String>> reads = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				reads.add(pool.submit(() -> read(template, "k/a")));
+			}
+			for (Future<String> read : reads) {
+				Assert.assertEquals("hello", read.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+		Assert.assertEquals(1, s3.gets.get());
+	}
+
+	/**
+	 * Run n concurrent reads of a key; a failed read yields its exception
+	 * class name.
+	 */
+	List<String> readConcurrently(String key, int n) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(n);
+		try {
+			List<Future<String>> reads = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				reads.add(pool.submit(() -> {
+					try {
+						return read(template, key);
+					} catch (RuntimeException e) {
+						return e.getClass().getSimpleName();
+					}
+				}));
+			}
+			List<String> out = new ArrayList<>();
+			for (Future<String> read : reads) {
+				out.add(read.get());
+			}
+			return out;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void concurrentRevalidationsShareOneGet() throws Exception {
+		s3.put("k/a", "old".getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals("old", read(template, "k/a"));
+		s3.nextLastModified = new Date(System.currentTimeMillis() + 10000);
+		s3.put("k/a", "new".getBytes(StandardCharsets.UTF_8));
+		s3.getDelay = 200;
+
+		Assert.assertEquals(Collections.nCopies(16, "new"), readConcurrently("k/a", 16));
+		Assert.assertEquals(2, s3.gets.get());
+	}
+
+	@Test
+	public void failedFillIsSharedButNotKept() throws Exception {
+		s3.getDelay = 200;
+		Assert.assertEquals(Collections.nCopies(16, "AmazonS3Exception"), readConcurrently("k/missing", 16));
+		Assert.assertEquals(1, s3.gets.get());
+
+		// the failure is not remembered: the next read asks again
+		s3.getDelay = 0;
+		s3.put("k/missing", "here".getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals("here", read(template, "k/missing"));
+		Assert.assertEquals(2, s3.gets.get());
+	}
+
+	@Test
+	public void templatesSharingTheCacheDownloadOnce() throws Exception {
+		// two templates of one bucket: same cache files, separate single-flight maps
+		AwsS3Template other = s3.template();
+		other.setBucket(template.getBucket());
+		s3.put("k/a", "hello".getBytes(StandardCharsets.UTF_8));
+		s3.getDelay = 300;
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> first = pool.submit(() -> read(template, "k/a"));
+			Thread.sleep(100);
+			Future<String> second = pool.submit(() -> read(other, "k/a"));
+			Assert.assertEquals("hello", first.get());
+			Assert.assertEquals("hello", second.get());
+		} finally {
+			pool.shutdown();
+			other.close();
+		}
+		Assert.assertEquals(1, s3.gets.get());
+	}
+
+	@Test
+	public void staleTempsOfOtherKeysAreKept() throws IOException {
+		s3.put("data1", "one".getBytes(StandardCharsets.UTF_8));
+		File dir = template.cacheLocation("data1").getParentFile();
+		dir.mkdirs();
+		File stale = new File(dir, "data1~dl123~temp");
+		File otherKey = new File(dir, "data12~dl456~temp");
+		File writer = new File(dir, "data1~w789~temp");
+		for (File f : new File[] { stale, otherKey, writer }) {
+			f.createNewFile();
+		}
+
+		Assert.assertEquals("one", read(template, "data1"));
+		Assert.assertFalse(stale.exists());
+		Assert.assertTrue(otherKey.exists());
+		Assert.assertTrue(writer.exists());
+		Assert.assertFalse("lock file left behind", new File(dir, "data1~lock").exists());
+	}
+
+	@Test
+	public void decompressedCopyOver2GbIsNotMapped() throws IOException {
+		template.setDecompressedCache(true);
+		template.gzipWrite("k/big.gz", "small");
+		Assert.assertEquals("small", template.gzipRead("k/big.gz", true));
+
+		// a sparse stand-in for a huge decompressed copy
+		File cacheFile = template.cacheLocation("k/big.gz");
+		File raw = new File(cacheFile.getPath() + "~raw");
+		try (RandomAccessFile f = new RandomAccessFile(raw, "rw")) {
+			f.setLength(Integer.MAX_VALUE + 1L);
+		}
+		raw.setLastModified(cacheFile.lastModified());
+		try {
+			Assert.assertNull(template.gzipMap(new AwsS3FetchParams("k/big.gz").withSkipStaleCheck(true)));
+			try {
+				template.gzipRead("k/big.gz", true);
+				Assert.fail("read a String over 2 GB");
+			} catch (RuntimeException e) {
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains("2 GB"));
+			}
+		} finally {
+			raw.delete();
+		}
+	}
+
+	@Test
+	public void trackedObjectsAreBounded() {
+		template.setMaxTrackedObjects(2);
+		for (String key : new String[] { "k/a", "k/b", "k/c" }) {
+			s3.put(key, key.getBytes(StandardCharsets.UTF_8));
+			Assert.assertEquals(key, read(template, key));
+		}
+		Assert.assertNull(template.cachedEtag("k/a"));
+		Assert.assertNotNull(template.cachedEtag("k/b"));
+		Assert.assertNotNull(template.cachedEtag("k/c"));
+
+		// forgotten keys are revalidated by modification time instead
+		int gets = s3.gets.get();
+		Assert.assertEquals("k/a", read(template, "k/a"));
+		Assert.assertEquals(gets + 1, s3.gets.get());
+	}
+
+	@Test
+	public void fetchedOutputsAreNotEvicted() throws Exception {
+		template.gzipWrite("k/x.json.gz", "hello");
+		Path fetched = template.gzipFetch("k/x.json.gz", false);
+		Assert.assertEquals("x.json", fetched.getFileName().toString());
+		Assert.assertEquals("hello", new String(Files.readAllBytes(fetched), StandardCharsets.UTF_8));
+
+		File root = Files.createTempDirectory("s3-cache").toFile();
+		File gunzipped = new File(root, "b/k/x.json.gz~fetched/x.json");
+		File extracted = new File(root, "b/k/z.zip~unzipped/dir/a");
+		File cached = new File(root, "b/k/c");
+		for (File f : new File[] { gunzipped, extracted, cached }) {
+			Files.createDirectories(f.toPath().getParent());
+			Files.write(f.toPath(), new byte[100]);
+		}
+
+		try (AwsS3DiskCache cache = new AwsS3DiskCache(root)) {
+			cache.setMaxBytes(1);
+			for (int i = 0; i < 100 && cache.getEvictions() == 0; i++) {
+				Thread.sleep(20);
+			}
+			Assert.assertFalse(cached.exists());
+			Assert.assertTrue(gunzipped.exists());
+			Assert.assertTrue(extracted.exists());
+			Assert.assertEquals(0, cache.getSize());
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.github.atramos.jaws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class AwsS3CacheTest {
+
+	public static class Place {
+		public String name;
+
+		public double lat;
+
+		public Place() {
+		}
+
+		Place(String name, double lat) {
+			this.name = name;
+			this.lat = lat;
+		}
+	}
+
+	FakeS3Client s3 = new FakeS3Client();
+
+	AwsS3Template template = s3.template();
+
+	@After
+	public void close() {
+		template.close();
+	}
+
+	@Test
+	public void binaryCacheStoresValuesAsTrees() throws IOException {
+		template.setEncoding(AwsS3Encoding.CBOR);
+		AwsS3Cache<Place> cache = new AwsS3Cache<>("cache/places.gz", Place.class, template);
+		cache.get("a", () -> new Place("Lisbon", 38.7));
+		cache.get("b", () -> null);
+		cache.flush();
+
+		try (InputStream in = AwsS3Codecs.decodeDetected(new ByteArrayInputStream(s3.data("cache/places.gz")))) {
+			String stored = new String(FakeS3Client.readAll(in), StandardCharsets.ISO_8859_1);
+			Assert.assertFalse(stored, stored.contains("\"name\""));
+			Assert.assertTrue(stored, stored.contains("Lisbon"));
+		}
+
+		// another template, so the entries are read back from S3
+		AwsS3Template other = s3.template();
+		other.setBucket(template.getBucket());
+		other.dropCached("cache/places.gz");
+		AwsS3Cache<Place> reread = new AwsS3Cache<>("cache/places.gz", Place.class, other);
+		Place a = reread.get("A", () -> {
+			throw new AssertionError("not cached");
+		});
+		Assert.assertEquals("Lisbon", a.name);
+		Assert.assertEquals(38.7, a.lat, 0);
+		Assert.assertTrue(reread.containsKey("b"));
+		Assert.assertNull(reread.get("b", () -> {
+			throw new AssertionError("not cached");
+		}));
+		other.close();
+	}
+
+	@Test
+	public void truncatedRecordIsAnError() throws IOException {
+		ObjectMapper om = new ObjectMapper();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String s : Arrays.asList("one", "two")) {
+			AwsS3Encoding.CBOR.writeRecord(om.writerFor(String.class), out, s);
+		}
+		byte[] records = out.toByteArray();
+		int first = records.length / 2;
+
+		for (int cut : new int[] { first + 2, records.length - 1 }) {
+			Iterator<String> it = AwsS3Encoding.CBOR.readRecords(om.readerFor(String.class),
+					new ByteArrayInputStream(Arrays.copyOf(records, cut)));
+			Assert.assertEquals("one", it.next());
+			try {
+				it.hasNext();
+				Assert.fail("truncation at " + cut + " passed for the end");
+			} catch (RuntimeException e) {
+				// expected
+			}
+		}
+		Iterator<String> it = AwsS3Encoding.CBOR.readRecords(om.readerFor(String.class),
+				new ByteArrayInputStream(records));
+		Assert.assertEquals("one", it.next());
+		Assert.assertEquals("two", it.next());
+		Assert.assertFalse(it.hasNext());
+	}
+}
@@ -0,0 +1,65 @@
+package com.github.atramos.jaws;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+public class AwsS3ClientRegistryTest {
+
+	static class Stop extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	@Test
+	public void handlersAddedLaterReachExistingClients() {
+		try (AwsS3ClientRegistry registry = new AwsS3ClientRegistry(
+				new AWSStaticCredentialsProvider(new AnonymousAWSCredentials()))) {
+			Region region = Region.getRegion(Regions.US_EAST_1);
+			AmazonS3Client client = registry.getClient("b", region);
+			Assert.assertSame(client, registry.getClient("b", region));
+
+			registry.addRequestHandler(new RequestHandler2() {
+				@Override
+				public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+					throw new Stop(); // before anything is sent
+				}
+			});
+			try {
+				client.getObjectMetadata("b", "k");
+				Assert.fail("handler not called");
+			} catch (Stop e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void templateIsUnusableAfterClose() {
+		AwsS3Template template = new FakeS3Client().template();
+		template.putList("k", String.class, Collections.singletonList("a"));
+		template.close();
+		template.close();
+		try {
+			template.supplyAsync(() -> "a", 0, TimeUnit.SECONDS);
+			Assert.fail("async operation accepted after close");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			template.setWriteBehind(1, 1);
+			Assert.fail("write-behind started after close");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package com.github.atramos.jaws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Compares the codecs of {@link AwsS3Codecs} on size and throughput, to pick
+ * the suffix of new objects, and the record encodings of
+ * {@link AwsS3Encoding}, to pick the template's encoding. Not a unit test;
+ * run it by hand:
+ *
+ * <pre>
+ * java -cp ... com.github.atramos.jaws.AwsS3CodecBenchmark [file...]
+ * </pre>
+ *
+ * Without arguments it uses about 64 MB of generated JSON lines; with
+ * arguments, the (uncompressed) contents of the given files. Codecs whose
+ * optional library is missing are skipped. Encodings are compared on the
+ * first 16 MB of lines, read as trees like getList(JsonNode.class) does.
+ */
+public class AwsS3CodecBenchmark {
+
+	private static final int ROUNDS = 5;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	public static void main(String[] args) throws IOException {
+		final byte[] data = args.length == 0 ? jsonLines(64 * 1024 * 1024) : read(args);
+
+		Map<String, AwsS3Codec> codecs = new LinkedHashMap<>();
+		codecs.put("gzip", AwsS3Codecs.gzip(-1, false));
+		codecs.put("gzip-1", AwsS3Codecs.gzip(1, false));
+		codecs.put("gzip-parallel", AwsS3Codecs.gzip(-1, true));
+		codecs.put("zstd-1", AwsS3Codecs.zstd(1));
+		codecs.put("zstd-3", AwsS3Codecs.zstd(AwsS3Codecs.DEFAULT_ZSTD_LEVEL));
+		codecs.put("zstd-9", AwsS3Codecs.zstd(9));
+		codecs.put("lz4", AwsS3Codecs.lz4());
+
+		System.out.printf("%,d bytes, best of %d rounds%n", data.length, ROUNDS);
+		System.out.printf("%-14s %14s %7s %14s %14s%n", "codec", "bytes", "ratio", "encode MB/s", "decode MB/s");
+		for (Map.Entry<String, AwsS3Codec> codec : codecs.entrySet()) {
+			try {
+				run(codec.getKey(), codec.getValue(), data);
+			} catch (LinkageError e) {
+				System.out.printf("%-14s skipped: %s%n", codec.getKey(), e);
+			}
+		}
+
+		final List<JsonNode> records = records(data, 16 * 1024 * 1024);
+		System.out.printf("%n%,d records%n", records.size());
+		System.out.printf("%-14s %14s %14s %14s %14s%n", "encoding", "bytes", "gzip bytes", "encode rec/s",
+				"decode rec/s");
+		for (AwsS3Encoding encoding : AwsS3Encoding.values()) {
+			try {
+				run(encoding, records);
+			} catch (LinkageError e) {
+				System.out.printf("%-14s skipped: %s%n", encoding, e);
+			}
+		}
+	}
+
+	private static void run(AwsS3Encoding encoding, List<JsonNode> records) throws IOException {
+		final ObjectWriter writer = MAPPER.writerFor(JsonNode.class);
+		final ObjectReader reader = MAPPER.readerFor(JsonNode.class);
+		byte[] encoded = null;
+		long encodeNanos = Long.MAX_VALUE;
+		long decodeNanos = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long started = System.nanoTime();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (JsonNode record : records) {
+				// as putList() writes them
+				if (encoding == AwsS3Encoding.JSON) {
+					out.write(writer.writeValueAsBytes(record));
+					out.write('\n');
+				} else {
+					encoding.writeRecord(writer, out, record);
+				}
+			}
+			encodeNanos = Math.min(encodeNanos, System.nanoTime() - started);
+			encoded = out.toByteArray();
+
+			started = System.nanoTime();
+			long n = 0;
+			InputStream in = new ByteArrayInputStream(encoded);
+			Iterator<JsonNode> it = encoding == AwsS3Encoding.JSON ? reader.readValues(in)
+					: encoding.readRecords(reader, in);
+			for (; it.hasNext(); it.next()) {
+				++n;
+			}
+			decodeNanos = Math.min(decodeNanos, System.nanoTime() - started);
+			if (n != records.size()) {
+				throw new IllegalStateException(encoding + " decoded " + n + " of " + records.size() + " records");
+			}
+		}
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream(encoded.length / 4);
+		try (OutputStream out = AwsS3Codecs.gzip(-1, false).encode(gzipped)) {
+			out.write(encoded);
+		}
+		System.out.printf("%-14s %,14d %,14d %,14.0f %,14.0f%n", encoding, encoded.length, gzipped.size(),
+				records.size() / (encodeNanos / 1e9), records.size() / (decodeNanos / 1e9));
+	}
+
+	/**
+	 * Parse the JSON lines in the first maxBytes of data.
+	 */
+	private static List<JsonNode> records(byte[] data, int maxBytes) throws IOException {
+		List<JsonNode> records = new ArrayList<>();
+		int start = 0;
+		for (int i = 0; i < data.length && i < maxBytes; i++) {
+			if (data[i] == '\n') {
+				if (i > start) {
+					records.add(MAPPER.readTree(new ByteArrayInputStream(data, start, i - start)));
+				}
+				start = i + 1;
+			}
+		}
+		return records;
+	}
+
+	private static void run(String name, AwsS3Codec codec, byte[] data) throws IOException {
+		byte[] compressed = null;
+		long encodeNanos = Long.MAX_VALUE;
+		long decodeNanos = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long started = System.nanoTime();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2);
+			try (OutputStream out = codec.encode(baos)) {
+				out.write(data);
+			}
+			encodeNanos = Math.min(encodeNanos, System.nanoTime() - started);
+			compressed = baos.toByteArray();
+
+			started = System.nanoTime();
+			long n = 0;
+			byte[] buf = new byte[65536];
+			try (InputStream in = codec.decode(new ByteArrayInputStream(compressed))) {
+				for (int r; (r = in.read(buf)) > 0;) {
+					n += r;
+				}
+			}
+			decodeNanos = Math.min(decodeNanos, System.nanoTime() - started);
+			if (n != data.length) {
+				throw new IllegalStateException(name + " decoded " + n + " of " + data.length + " bytes");
+			}
+		}
+		System.out.printf("%-14s %,14d %7.2f %14.1f %14.1f%n", name, compressed.length,
+				(double) data.length / compressed.length, mbPerSecond(data.length, encodeNanos),
+				mbPerSecond(data.length, decodeNanos));
+	}
+
+	private static double mbPerSecond(long bytes, long nanos) {
+		return bytes / 1048576.0 / (nanos / 1e9);
+	}
+
+	private static byte[] read(String[] files) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String file : files) {
+			try (InputStream in = AwsS3Codecs.decodeDetected(Files.newInputStream(Paths.get(file)))) {
+				byte[] buf = new byte[65536];
+				for (int r; (r = in.read(buf)) > 0;) {
+					out.write(buf, 0, r);
+				}
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Records resembling the lists written by putList(): repeated field
+	 * names, ids, numbers and a small vocabulary of strings.
+	 */
+	private static byte[] jsonLines(int size) {
+		final String[] words = { "north", "south", "east", "west", "active", "pending", "closed", "retail",
+				"wholesale", "online" };
+		final Random random = new Random(42);
+		StringBuilder sb = new StringBuilder(size + 256);
+		for (long id = 0; sb.length() < size; id++) {
+			sb.append("{\"id\":").append(id)
+					.append(",\"account\":\"A").append(100000 + random.nextInt(900000))
+					.append("\",\"region\":\"").append(words[random.nextInt(4)])
+					.append("\",\"status\":\"").append(words[4 + random.nextInt(3)])
+					.append("\",\"channel\":\"").append(words[7 + random.nextInt(3)])
+					.append("\",\"amount\":").append(random.nextInt(1000000) / 100.0)
+					.append(",\"ts\":").append(1600000000000L + id * 1000 + random.nextInt(1000))
+					.append("}\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,166 @@
+package com.github.atramos.jaws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AwsS3CodecsTest {
+
+	/**
+	 * Not a compression format, just recognizable: flips every byte.
+	 */
+	static class FlipCodec implements AwsS3Codec {
+		@Override
+		public String getContentEncoding() {
+			return "x-flip";
+		}
+
+		@Override
+		public String getSuffix() {
+			return ".flip";
+		}
+
+		@Override
+		public InputStream decode(InputStream in) {
+			return new FilterInputStream(in) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					return b < 0 ? b : ~b & 0xff;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					for (int i = 0; i < n; i++) {
+						b[off + i] = (byte) ~b[off + i];
+					}
+					return n;
+				}
+			};
+		}
+
+		@Override
+		public OutputStream encode(OutputStream out) {
+			return new FilterOutputStream(out) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(~b);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Like S3ObjectInputStream: available() is always 0 and reads return
+	 * short chunks.
+	 */
+	static class NetworkInputStream extends FilterInputStream {
+		NetworkInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 1500));
+		}
+
+		@Override
+		public int available() {
+			return 0;
+		}
+	}
+
+	static byte[] payload(int size) {
+		// compressible but not trivially so
+		byte[] data = new byte[size];
+		Random random = new Random(42);
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) ('a' + random.nextInt(16));
+		}
+		return data;
+	}
+
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[65536];
+		for (int n; (n = in.read(buf)) > 0;) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void parallelGzipReadsFullyFromNetworkStream() throws IOException {
+		byte[] data = payload(15 * 1024 * 1024);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (OutputStream out = AwsS3Codecs.gzip(-1, true).encode(compressed)) {
+			out.write(data);
+		}
+
+		try (InputStream in = AwsS3Codecs.gzip(-1, false)
+				.decode(new NetworkInputStream(new ByteArrayInputStream(compressed.toByteArray())))) {
+			Assert.assertArrayEquals(data, readAll(in));
+		}
+		try (InputStream in = AwsS3Codecs.decodeDetected(
+				new NetworkInputStream(new ByteArrayInputStream(compressed.toByteArray())))) {
+			Assert.assertArrayEquals(data, readAll(in));
+		}
+	}
+
+	@Test
+	public void singleMemberGzip() throws IOException {
+		byte[] data = payload(100000);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (OutputStream out = AwsS3Codecs.gzip(-1, false).encode(compressed)) {
+			out.write(data);
+		}
+		try (InputStream in = AwsS3Codecs.gunzip(
+				new NetworkInputStream(new ByteArrayInputStream(compressed.toByteArray())))) {
+			Assert.assertArrayEquals(data, readAll(in));
+		}
+	}
+
+	@Test
+	public void builtinCodecsAreRegistered() {
+		Assert.assertEquals("gzip", AwsS3Codecs.forSuffix("a.json.gz").getContentEncoding());
+		Assert.assertEquals("zstd", AwsS3Codecs.forSuffix("a.json.zst").getContentEncoding());
+		Assert.assertEquals("lz4", AwsS3Codecs.forSuffix("a.json.lz4").getContentEncoding());
+		Assert.assertNull(AwsS3Codecs.forSuffix("a.json"));
+		Assert.assertEquals(".gz", AwsS3Codecs.forContentEncoding(" GZIP ").getSuffix());
+		Assert.assertSame(AwsS3Codecs.none(), AwsS3Codecs.forContentEncoding("identity"));
+		Assert.assertNull(AwsS3Codecs.forContentEncoding("br"));
+	}
+
+	@Test
+	public void registeredCodecIsUsedByTemplate() {
+		AwsS3Codec flip = new FlipCodec();
+		AwsS3Codecs.register(flip);
+		Assert.assertSame(flip, AwsS3Codecs.forSuffix("a.json.flip"));
+		Assert.assertSame(flip, AwsS3Codecs.forContentEncoding("X-Flip"));
+
+		FakeS3Client s3 = new FakeS3Client();
+		AwsS3Template template = s3.template();
+		try {
+			List<String> records = Arrays.asList("a", "b", "c");
+			template.putList("k/list.json.flip", String.class, records);
+			Assert.assertEquals("x-flip", s3.objects.get("k/list.json.flip").contentEncoding);
+			byte[] stored = s3.data("k/list.json.flip");
+			Assert.assertEquals((byte) ~'"', stored[0]);
+			Assert.assertEquals(records, template.getList(String.class,
+					new AwsS3FetchParams("k/list.json.flip").withNoSave(true)));
+		} finally {
+			template.close();
+		}
+	}
+}
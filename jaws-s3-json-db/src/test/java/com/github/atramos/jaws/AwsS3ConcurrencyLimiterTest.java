@@ -0,0 +1,36 @@
+package com.github.atramos.jaws;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+
+public class AwsS3ConcurrencyLimiterTest {
+
+	@Test
+	public void limiterForgetsIdlePrefixes() {
+		AwsS3ConcurrencyLimiter limiter = new AwsS3ConcurrencyLimiter();
+		limiter.setEnabled(true);
+		limiter.setMaxPrefixes(100);
+
+		Request<?> busy = request("/b/busy/k");
+		limiter.beforeRequest(busy);
+		for (int i = 0; i < 1000; i++) {
+			Request<?> request = request("/b/p" + i + "/k");
+			limiter.beforeRequest(request);
+			limiter.afterResponse(request, null);
+		}
+		Assert.assertTrue(limiter.getLimits().size() <= 100);
+		Assert.assertNotNull("in-flight prefix dropped", limiter.getLimit("/b/busy/"));
+		Assert.assertNotNull(limiter.getLimit("/b/p999/"));
+		limiter.afterResponse(busy, null);
+		Assert.assertEquals(0, limiter.getLimit("/b/busy/").getInFlight());
+	}
+
+	static Request<?> request(String path) {
+		Request<?> request = new DefaultRequest<>("Amazon S3");
+		request.setResourcePath(path);
+		return request;
+	}
+}
@@ -0,0 +1,109 @@
+package com.github.atramos.jaws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AwsS3DatasetTest {
+
+	public static class Rec {
+		public int id;
+
+		public Rec() {
+		}
+
+		Rec(int id) {
+			this.id = id;
+		}
+	}
+
+	FakeS3Client s3 = new FakeS3Client();
+
+	AwsS3Template template = s3.template();
+
+	@After
+	public void close() {
+		template.close();
+	}
+
+	static List<Rec> records(int n) {
+		List<Rec> out = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			out.add(new Rec(i));
+		}
+		return out;
+	}
+
+	static List<Integer> ids(List<Rec> records) {
+		return records.stream().map(r -> r.id).collect(Collectors.toList());
+	}
+
+	@Test
+	public void rewriteSwitchesToNewParts() {
+		AwsS3DatasetManifest first = template.putDataset("d", Rec.class, records(30), 3);
+		AwsS3DatasetManifest second = template.putDataset("d", Rec.class, records(20), 2);
+
+		Set<String> before = first.parts.stream().map(p -> p.key).collect(Collectors.toSet());
+		for (AwsS3DatasetManifest.Part part : second.parts) {
+			Assert.assertFalse(part.key, before.contains(part.key));
+		}
+		for (String key : before) {
+			Assert.assertNull(key, s3.data(key));
+		}
+		Assert.assertEquals(ids(records(20)), ids(template.getDataset("d", Rec.class, null)));
+	}
+
+	@Test
+	public void getDatasetFromAsyncThread() throws Exception {
+		template.setAsyncConcurrency(1);
+		template.putDataset("d", Rec.class, records(30), 3);
+
+		// the only async thread waits for the parts, which must run elsewhere
+		List<Rec> read = template.supplyAsync(() -> template.getDataset("d", Rec.class, null), 10, TimeUnit.SECONDS)
+				.get();
+		Assert.assertEquals(ids(records(30)), ids(read));
+	}
+
+	@Test
+	public void streamReadsPartsInOrder() {
+		template.putDataset("d", Rec.class, records(30), 3);
+
+		try (Stream<Rec> stream = template.streamDataset("d", Rec.class, null)) {
+			Iterator<Rec> it = stream.iterator();
+			Assert.assertEquals(0, it.next().id);
+		}
+		try (Stream<Rec> stream = template.streamDataset("d", Rec.class, null)) {
+			List<Integer> ids = stream.map(r -> r.id).collect(Collectors.toList());
+			Assert.assertEquals(ids(records(30)), ids);
+		}
+		try (Stream<Rec> stream = template.streamDataset("d", Rec.class, p -> false)) {
+			Assert.assertEquals(Collections.emptyList(), stream.collect(Collectors.toList()));
+		}
+	}
+
+	@Test
+	public void writeBehindDoesNotDelayParts() {
+		template.setWriteBehind(2, 10);
+		AwsS3DatasetManifest first = template.putDataset("d", Rec.class, records(30), 3);
+		AwsS3DatasetManifest second = template.putDataset("d", Rec.class, records(20), 2);
+
+		// everything is in S3 when putDataset returns, with nothing queued
+		Assert.assertEquals(0, template.getWriteBehind().getPending());
+		Assert.assertNotNull(s3.data("d/" + AwsS3DatasetManifest.NAME));
+		for (AwsS3DatasetManifest.Part part : second.parts) {
+			Assert.assertNotNull(part.key, s3.data(part.key));
+		}
+		for (AwsS3DatasetManifest.Part part : first.parts) {
+			Assert.assertNull(part.key, s3.data(part.key));
+		}
+	}
+}
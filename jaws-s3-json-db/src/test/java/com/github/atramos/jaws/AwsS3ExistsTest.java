@@ -0,0 +1,88 @@
+package com.github.atramos.jaws;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AwsS3ExistsTest {
+
+	FakeS3Client s3 = new FakeS3Client();
+
+	AwsS3Template template = s3.template();
+
+	@After
+	public void close() {
+		template.close();
+	}
+
+	void put(String... keys) {
+		for (String key : keys) {
+			s3.put(key, key.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	public void existsAllListsEachDirectoryOnce() {
+		put("a/1", "a/3", "b/x", "c/other");
+		Map<String, Boolean> expected = new HashMap<>();
+		expected.put("a/1", true);
+		expected.put("a/2", false);
+		expected.put("a/3", true);
+		expected.put("b/x", true);
+		expected.put("b/y", false);
+		expected.put("c/z", false);
+
+		Assert.assertEquals(expected, template.existsAll(expected.keySet()));
+		Assert.assertEquals(3, s3.lists.get());
+		Assert.assertEquals(0, s3.heads.get());
+	}
+
+	@Test
+	public void longListingFallsBackToHead() {
+		for (int i = 1; i <= 9; i++) {
+			put("a/" + i);
+		}
+		s3.maxKeys = 1;
+
+		Map<String, Boolean> exists = template.existsAll(Arrays.asList("a/1", "a/9"));
+		Assert.assertEquals(Boolean.TRUE, exists.get("a/1"));
+		Assert.assertEquals(Boolean.TRUE, exists.get("a/9"));
+		Assert.assertEquals(1, s3.lists.get());
+		Assert.assertEquals(1, s3.heads.get());
+	}
+
+	@Test
+	public void missingKeysAreRemembered() {
+		template.setExistenceCacheTtl(60000);
+		put("a/1");
+
+		Assert.assertEquals(Boolean.FALSE, template.existsAll(Arrays.asList("a/1", "a/2")).get("a/2"));
+		Assert.assertEquals(1, s3.lists.get());
+
+		Assert.assertFalse(template.exists("a/2"));
+		Assert.assertEquals(Boolean.FALSE, template.existsAll(Arrays.asList("a/2")).get("a/2"));
+		Assert.assertEquals(1, s3.lists.get());
+		Assert.assertEquals(0, s3.heads.get());
+	}
+
+	@Test
+	public void putClearsMissingEntry() throws IOException {
+		template.setExistenceCacheTtl(60000);
+
+		Assert.assertFalse(template.exists("k/x"));
+		Assert.assertEquals(1, s3.heads.get());
+		template.gzipWrite("k/x", "written");
+		Assert.assertTrue(template.exists("k/x"));
+		Assert.assertEquals(2, s3.heads.get());
+
+		Assert.assertEquals(Boolean.FALSE, template.existsAll(Arrays.asList("k/y")).get("k/y"));
+		template.putList("k/y", String.class, Arrays.asList("written"));
+		Assert.assertEquals(Boolean.TRUE, template.existsAll(Arrays.asList("k/y")).get("k/y"));
+	}
+}
@@ -0,0 +1,119 @@
+package com.github.atramos.jaws;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AwsS3ListWriterTest {
+
+	FakeS3Client s3 = new FakeS3Client();
+
+	AwsS3Template template = s3.template();
+
+	@Before
+	public void smallParts() {
+		template.setPartSize(AwsS3MultipartUpload.MIN_PART_SIZE);
+	}
+
+	@After
+	public void close() {
+		template.close();
+	}
+
+	/**
+	 * Records that gzip poorly, about size bytes in all.
+	 */
+	static List<String> records(int size) {
+		final String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		Random random = new Random(42);
+		List<String> records = new ArrayList<>();
+		for (int n = 0; n < size; n += 8192) {
+			StringBuilder sb = new StringBuilder(8192);
+			for (int i = 0; i < 8192; i++) {
+				sb.append(chars.charAt(random.nextInt(chars.length())));
+			}
+			records.add(sb.toString());
+		}
+		return records;
+	}
+
+	void write(List<String> records) {
+		try (AwsS3ListWriter<String> out = template.openListWriter("k/list.json.gz", String.class)) {
+			for (String record : records) {
+				out.write(record);
+			}
+			out.commit();
+		}
+	}
+
+	String[] temps() {
+		return template.cacheLocation("k/list.json.gz").getParentFile()
+				.list((dir, name) -> name.endsWith("~temp"));
+	}
+
+	@Test
+	public void smallListIsOnePut() {
+		List<String> records = Arrays.asList("a", "b", "c");
+		write(records);
+		Assert.assertEquals(1, s3.puts.get());
+		Assert.assertEquals(0, s3.multipartUploads.get());
+		Assert.assertEquals(records, template.getList(String.class,
+				new AwsS3FetchParams("k/list.json.gz").withNoSave(true)));
+	}
+
+	@Test
+	public void largeListIsMultipart() {
+		// more than one 5 MB part once compressed
+		List<String> records = records(8 * 1024 * 1024);
+		write(records);
+		Assert.assertEquals(1, s3.multipartUploads.get());
+		Assert.assertEquals(1, s3.puts.get());
+		Assert.assertTrue(s3.uploads.isEmpty());
+		Assert.assertEquals(records, template.getList(String.class,
+				new AwsS3FetchParams("k/list.json.gz").withNoSave(true)));
+		// the cache file is the uploaded object
+		Assert.assertArrayEquals(s3.data("k/list.json.gz"),
+				FakeS3Client.readAll(template.openInputStream(new AwsS3FetchParams("k/list.json.gz")
+						.withSkipStaleCheck(true))));
+	}
+
+	@Test
+	public void abortLeavesNothingBehind() {
+		try (AwsS3ListWriter<String> out = template.openListWriter("k/list.json.gz", String.class)) {
+			for (String record : records(8 * 1024 * 1024)) {
+				out.write(record);
+			}
+			Assert.assertEquals(1, s3.multipartUploads.get()); // a part is out already
+			out.abort();
+		}
+		Assert.assertNull(s3.data("k/list.json.gz"));
+		Assert.assertEquals(1, s3.aborts.get());
+		Assert.assertTrue(s3.uploads.isEmpty());
+		Assert.assertFalse(new File(template.cacheLocation("k/list.json.gz").getPath()).exists());
+		Assert.assertEquals(0, temps().length);
+	}
+
+	@Test
+	public void exceptionWithoutCommitLeavesNothingBehind() {
+		try (AwsS3ListWriter<String> out = template.openListWriter("k/list.json.gz", String.class)) {
+			for (String record : records(8 * 1024 * 1024)) {
+				out.write(record);
+			}
+			throw new IllegalArgumentException("producer failed");
+		} catch (IllegalArgumentException e) {
+			// close() ran without commit()
+		}
+		Assert.assertNull(s3.data("k/list.json.gz"));
+		Assert.assertEquals(1, s3.multipartUploads.get());
+		Assert.assertEquals(1, s3.aborts.get());
+		Assert.assertTrue(s3.uploads.isEmpty());
+		Assert.assertEquals(0, temps().length);
+	}
+}
@@ -0,0 +1,69 @@
+package com.github.atramos.jaws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AwsS3MirrorTest {
+
+	FakeS3Client s3 = new FakeS3Client();
+
+	AwsS3Template template = s3.template();
+
+	@After
+	public void close() {
+		template.close();
+	}
+
+	String local(AwsS3Mirror mirror, String key) throws IOException {
+		return new String(Files.readAllBytes(mirror.getLocalFile(key).toPath()), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void changedObjectIsFetchedAfterRestart() throws IOException {
+		s3.put("m/a", "one".getBytes(StandardCharsets.UTF_8));
+		new AwsS3Mirror(template, "m/").sync();
+
+		// a new process knows nothing of the cached file but the manifest, and
+		// the new version is dated before the local copy
+		AwsS3Template restarted = s3.template();
+		restarted.setBucket(template.getBucket());
+		s3.nextLastModified = new Date(0);
+		s3.put("m/a", "two".getBytes(StandardCharsets.UTF_8));
+		try {
+			AwsS3Mirror mirror = new AwsS3Mirror(restarted, "m/");
+			AwsS3Mirror.Changes changes = mirror.sync();
+			Assert.assertEquals(1, changes.changed.size());
+			Assert.assertEquals("two", local(mirror, "m/a"));
+			Assert.assertTrue(mirror.sync().isEmpty());
+		} finally {
+			restarted.close();
+		}
+	}
+
+	@Test
+	public void manifestIsNotEvicted() throws Exception {
+		File root = Files.createTempDirectory("s3-cache").toFile();
+		File manifest = new File(root, "b/m/~mirror");
+		File cached = new File(root, "b/m/a");
+		Files.createDirectories(cached.toPath().getParent());
+		Files.write(manifest.toPath(), new byte[100]);
+		Files.write(cached.toPath(), new byte[100]);
+
+		try (AwsS3DiskCache cache = new AwsS3DiskCache(root)) {
+			cache.setMaxBytes(1);
+			for (int i = 0; i < 100 && cache.getEvictions() == 0; i++) {
+				Thread.sleep(20);
+			}
+			Assert.assertFalse(cached.exists());
+			Assert.assertTrue(manifest.exists());
+			Assert.assertEquals(0, cache.getSize());
+		}
+	}
+}
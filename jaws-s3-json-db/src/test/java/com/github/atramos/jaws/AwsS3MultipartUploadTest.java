@@ -0,0 +1,67 @@
+package com.github.atramos.jaws;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+public class AwsS3MultipartUploadTest {
+
+	FakeS3Client s3 = new FakeS3Client();
+
+	ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	byte[] data = AwsS3CodecsTest.payload(12 * 1024 * 1024);
+
+	@After
+	public void close() {
+		executor.shutdown();
+	}
+
+	void upload(long partSize) {
+		AwsS3MultipartUpload.uploadBytes(s3, "bucket", "k/big", new ObjectMetadata(), data, partSize, executor, 4, 3);
+	}
+
+	static AmazonServiceException status(int statusCode) {
+		AmazonS3Exception e = new AmazonS3Exception("status " + statusCode);
+		e.setStatusCode(statusCode);
+		return e;
+	}
+
+	@Test
+	public void partSizeAboveIntRange() {
+		upload(4L * 1024 * 1024 * 1024);
+		Assert.assertEquals(1, s3.partAttempts.get());
+		Assert.assertArrayEquals(data, s3.data("k/big"));
+	}
+
+	@Test
+	public void serverErrorsAndThrottlingAreRetried() {
+		s3.partFailures.add(status(500));
+		s3.partFailures.add(status(429));
+		upload(AwsS3MultipartUpload.MIN_PART_SIZE);
+		Assert.assertEquals(3 + 2, s3.partAttempts.get());
+		Assert.assertArrayEquals(data, s3.data("k/big"));
+	}
+
+	@Test
+	public void clientErrorsFailFast() {
+		s3.partFailures.add(status(403));
+		try {
+			upload(data.length);
+			Assert.fail("403 accepted");
+		} catch (RuntimeException e) {
+			Assert.assertEquals(403, ((AmazonServiceException) e.getCause()).getStatusCode());
+		}
+		Assert.assertEquals(1, s3.partAttempts.get());
+		Assert.assertEquals(1, s3.aborts.get());
+		Assert.assertNull(s3.data("k/big"));
+		Assert.assertTrue(s3.uploads.isEmpty());
+	}
+}
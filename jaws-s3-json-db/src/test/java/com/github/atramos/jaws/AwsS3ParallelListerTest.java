@@ -0,0 +1,91 @@
+package com.github.atramos.jaws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+public class AwsS3ParallelListerTest {
+
+	FakeS3Client s3 = new FakeS3Client();
+
+	AwsS3Template template = s3.template();
+
+	@After
+	public void close() {
+		template.close();
+	}
+
+	List<String> put(String... keys) {
+		for (String key : keys) {
+			s3.put(key, new byte[0]);
+		}
+		List<String> sorted = new ArrayList<>(Arrays.asList(keys));
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	static List<String> keys(Stream<List<S3ObjectSummary>> pages) {
+		try (Stream<List<S3ObjectSummary>> s = pages) {
+			return s.flatMap(List::stream).map(S3ObjectSummary::getKey).collect(Collectors.toList());
+		}
+	}
+
+	static List<String> sorted(List<String> keys) {
+		List<String> copy = new ArrayList<>(keys);
+		Collections.sort(copy);
+		return copy;
+	}
+
+	@Test
+	public void splitsAreRelativeToPrefix() {
+		s3.maxKeys = 3;
+		List<String> expected = new ArrayList<>();
+		for (char c : "0123456789abcdef".toCharArray()) {
+			expected.addAll(put("data/" + c + "1", "data/" + c + "2"));
+		}
+		put("other/1", "data");
+		List<String> splits = Arrays.asList("c", "4", "8");
+
+		Assert.assertEquals(expected, keys(template.streamKeys("data/", splits, true)));
+		Assert.assertEquals(expected, sorted(keys(template.streamKeys("data/", splits, false))));
+	}
+
+	@Test
+	public void delimiterMixesDirectKeysAndSubPrefixes() {
+		s3.maxKeys = 2;
+		List<String> expected = put("p/a", "p/b/1", "p/b/2", "p/b/3", "p/c", "p/d", "p/e/1", "p/f", "p/g");
+		put("q/1");
+
+		Assert.assertEquals(expected, keys(template.streamKeys("p/", "/", true)));
+		Assert.assertEquals(expected, sorted(keys(template.streamKeys("p/", "/", false))));
+	}
+
+	@Test
+	public void flatPrefixIsStreamed() throws InterruptedException {
+		s3.maxKeys = 10;
+		for (int i = 0; i < 1000; i++) {
+			s3.put(String.format("flat/%04d", i), new byte[0]);
+		}
+		try (Stream<List<S3ObjectSummary>> pages = template.streamKeys("flat/", "/", true)) {
+			Iterator<List<S3ObjectSummary>> it = pages.iterator();
+			Assert.assertEquals("flat/0000", it.next().get(0).getKey());
+			Thread.sleep(100);
+			Assert.assertTrue("listed " + s3.lists.get() + " pages ahead", s3.lists.get() < 20);
+			int n = 10;
+			while (it.hasNext()) {
+				n += it.next().size();
+			}
+			Assert.assertEquals(1000, n);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.github.atramos.jaws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+
+public class AwsS3RangeDownloaderTest {
+
+	FakeS3Client s3 = new FakeS3Client();
+
+	ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	@After
+	public void close() {
+		executor.shutdown();
+	}
+
+	byte[] download(int size, long threshold, long rangeSize) throws IOException {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		s3.put("object", data);
+		File target = File.createTempFile("range", ".bin");
+		try {
+			long n = AwsS3RangeDownloader.download(s3, s3.getObject(new GetObjectRequest("bucket", "object")),
+					target, threshold, rangeSize, executor, 0);
+			Assert.assertEquals(size, n);
+			byte[] read = Files.readAllBytes(target.toPath());
+			Assert.assertArrayEquals(data, read);
+			return read;
+		} finally {
+			target.delete();
+		}
+	}
+
+	@Test
+	public void smallObjectInOneRequest() throws IOException {
+		download(1000, 4096, 1024);
+		Assert.assertEquals(1, s3.gets.get());
+	}
+
+	@Test
+	public void largeObjectInRanges() throws IOException {
+		download(10000, 4096, 1024);
+		Assert.assertEquals(10, s3.gets.get());
+	}
+
+	@Test
+	public void thresholdBelowRangeSize() throws IOException {
+		// threshold 8, range 16, object 12: above the threshold, within one range
+		download(12 * 1024, 8 * 1024, 16 * 1024);
+		Assert.assertEquals(1, s3.gets.get());
+	}
+}
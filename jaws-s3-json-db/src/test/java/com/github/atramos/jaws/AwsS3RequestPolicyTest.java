@@ -0,0 +1,119 @@
+package com.github.atramos.jaws;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AwsS3RequestPolicyTest {
+
+	AwsS3RequestPolicy policy = new AwsS3RequestPolicy();
+
+	List<String> discarded = new CopyOnWriteArrayList<>();
+
+	@After
+	public void close() {
+		policy.close();
+	}
+
+	@Test
+	public void interruptedCallerAbortsTheRequest() throws InterruptedException {
+		policy.setHedgeDelay(60000);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch aborted = new CountDownLatch(1);
+		Thread caller = new Thread(() -> {
+			try {
+				policy.execute(() -> {
+					started.countDown();
+					try {
+						Thread.sleep(60000);
+					} catch (InterruptedException e) {
+						aborted.countDown();
+					}
+					return "late";
+				}, discarded::add);
+			} catch (RuntimeException e) {
+				// interrupted
+			}
+		});
+		caller.start();
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		caller.interrupt();
+		Assert.assertTrue("request not aborted", aborted.await(5, TimeUnit.SECONDS));
+		caller.join(5000);
+		for (int i = 0; i < 100 && discarded.isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals("late", discarded.get(0));
+	}
+
+	@Test
+	public void losingHedgeIsAbortedAndDiscarded() throws InterruptedException {
+		policy.setHedgeDelay(50);
+		AtomicInteger calls = new AtomicInteger();
+		String result = policy.execute(() -> {
+			if (calls.incrementAndGet() == 1) {
+				try {
+					Thread.sleep(60000);
+				} catch (InterruptedException e) {
+					return "slow";
+				}
+			}
+			return "fast";
+		}, discarded::add);
+		Assert.assertEquals("fast", result);
+		Assert.assertEquals(1, policy.getHedgeWins());
+		for (int i = 0; i < 100 && discarded.isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals("slow", discarded.get(0));
+	}
+
+	@Test
+	public void busyPoolRunsRequestsUnhedged() throws InterruptedException {
+		policy.setHedgeDelay(10);
+		policy.setMaxThreads(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		Thread other = new Thread(() -> policy.execute(() -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				// done
+			}
+			return "other";
+		}, discarded::add));
+		other.start();
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		AtomicReference<Thread> ranOn = new AtomicReference<>();
+		Assert.assertEquals("mine", policy.execute(() -> {
+			ranOn.set(Thread.currentThread());
+			return "mine";
+		}, discarded::add));
+		Assert.assertSame(Thread.currentThread(), ranOn.get());
+
+		release.countDown();
+		other.join(5000);
+	}
+
+	@Test
+	public void closedPolicyRejectsHedgedRequests() {
+		policy.setHedgeDelay(50);
+		Assert.assertEquals("ok", policy.execute(() -> "ok", discarded::add));
+		policy.close();
+		try {
+			policy.execute(() -> "late", discarded::add);
+			Assert.fail("request ran after close");
+		} catch (IllegalStateException e) {
+			// no new hedging pool
+		}
+	}
+}
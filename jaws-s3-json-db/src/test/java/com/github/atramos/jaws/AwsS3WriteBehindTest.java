@@ -0,0 +1,121 @@
+package com.github.atramos.jaws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AwsS3WriteBehindTest {
+
+	FakeS3Client s3 = new FakeS3Client();
+
+	AwsS3Template template = s3.template();
+
+	@After
+	public void close() {
+		template.close();
+	}
+
+	/**
+	 * Occupy the only uploader thread until the returned latch is released.
+	 */
+	CountDownLatch blockUploads() {
+		CountDownLatch latch = new CountDownLatch(1);
+		template.getWriteBehind().submit("~block", () -> {
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		return latch;
+	}
+
+	@Test
+	public void queuedFileUploadSendsContentsOfSubmitTime() throws IOException {
+		template.setWriteBehind(1, 10);
+		CountDownLatch latch = blockUploads();
+
+		File file = template.cacheLocation("k/a");
+		Files.createDirectories(file.toPath().getParent());
+		Files.write(file.toPath(), "first".getBytes(StandardCharsets.UTF_8));
+		template.gzipMetaWrite("k/a", file);
+
+		// replaced by rename, as putList does, while the upload is queued
+		File next = new File(file.getPath() + "~next");
+		Files.write(next.toPath(), "second, longer".getBytes(StandardCharsets.UTF_8));
+		Files.move(next.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		latch.countDown();
+		template.getWriteBehind().drain();
+		Assert.assertEquals("first", new String(s3.data("k/a"), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void multipartUploadReadsFromOpenFile() throws IOException {
+		template.setWriteBehind(1, 10);
+		template.setMultipartThreshold(AwsS3MultipartUpload.MIN_PART_SIZE);
+		CountDownLatch latch = blockUploads();
+
+		byte[] data = AwsS3CodecsTest.payload(12 * 1024 * 1024);
+		File file = template.cacheLocation("k/big");
+		Files.createDirectories(file.toPath().getParent());
+		Files.write(file.toPath(), data);
+		template.gzipMetaWrite("k/big", file);
+		Assert.assertTrue(file.delete());
+
+		latch.countDown();
+		template.getWriteBehind().drain();
+		Assert.assertArrayEquals(data, s3.data("k/big"));
+	}
+
+	@Test
+	public void queuedCacheFileIsNotEvicted() throws IOException {
+		template.setWriteBehind(1, 10);
+		CountDownLatch latch = blockUploads();
+
+		File file = template.putList("k/b", String.class, Arrays.asList("x", "y"));
+		AwsS3DiskCache cache = template.getDiskCache();
+		cache.setMaxBytes(1);
+		cache.evict();
+		Assert.assertTrue(file.exists());
+
+		latch.countDown();
+		template.getWriteBehind().drain();
+		Assert.assertNotNull(s3.data("k/b"));
+		cache.evict();
+		Assert.assertFalse(file.exists());
+	}
+
+	@Test
+	public void replacedQueueDrainsBeforeNewWrites() throws InterruptedException {
+		template.setWriteBehind(1, 10);
+		AwsS3WriteBehind first = template.getWriteBehind();
+		CountDownLatch latch = blockUploads();
+		template.gzipMetaWrite("k/a", "old".getBytes(StandardCharsets.UTF_8));
+
+		Thread replace = new Thread(() -> template.setWriteBehind(1, 10));
+		replace.start();
+		Thread.sleep(200);
+		// the old queue is draining: this write must not overtake "old"
+		Thread write = new Thread(() -> template.gzipMetaWrite("k/a", "new".getBytes(StandardCharsets.UTF_8)));
+		write.start();
+		Thread.sleep(200);
+		Assert.assertNull(s3.data("k/a"));
+
+		latch.countDown();
+		replace.join();
+		write.join();
+		Assert.assertEquals(0, first.getPending());
+		Assert.assertTrue(first != template.getWriteBehind());
+		template.drain();
+		Assert.assertEquals("new", new String(s3.data("k/a"), StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,93 @@
+package com.github.atramos.jaws;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AwsS3ZipExtractorTest {
+
+	ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	@After
+	public void close() {
+		executor.shutdown();
+	}
+
+	static Path zip(Map<String, String> entries) throws IOException {
+		Path archive = Files.createTempFile("archive", ".zip");
+		try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(archive))) {
+			for (Map.Entry<String, String> e : entries.entrySet()) {
+				ZipEntry entry = new ZipEntry(e.getKey());
+				entry.setTime(1500000000000L);
+				zos.putNextEntry(entry);
+				zos.write(e.getValue().getBytes(StandardCharsets.UTF_8));
+				zos.closeEntry();
+			}
+		}
+		return archive;
+	}
+
+	static String read(Path file) throws IOException {
+		return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void entryOutsideTargetIsRejected() throws IOException {
+		Path parent = Files.createTempDirectory("zip");
+		Path target = parent.resolve("out");
+		Map<String, String> entries = new LinkedHashMap<>();
+		entries.put("ok", "fine");
+		entries.put("../evil", "gotcha");
+		try {
+			AwsS3ZipExtractor.extract(zip(entries), target, executor);
+			Assert.fail("zip slip accepted");
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("../evil"));
+		}
+		Assert.assertFalse(Files.exists(parent.resolve("evil")));
+	}
+
+	@Test
+	public void unchangedEntriesAreSkipped() throws IOException {
+		Map<String, String> entries = new LinkedHashMap<>();
+		for (int i = 0; i < 20; i++) {
+			entries.put("dir" + i % 3 + "/file" + i, "contents of file " + i);
+		}
+		Path archive = zip(entries);
+		Path target = Files.createTempDirectory("zip");
+
+		Assert.assertEquals(20, AwsS3ZipExtractor.extract(archive, target, executor));
+		for (Map.Entry<String, String> e : entries.entrySet()) {
+			Assert.assertEquals(e.getValue(), read(target.resolve(e.getKey())));
+		}
+		Assert.assertEquals(0, AwsS3ZipExtractor.extract(archive, target, executor));
+
+		// same size and content, other time: kept by CRC
+		Path touched = target.resolve("dir0/file0");
+		Files.setLastModifiedTime(touched, FileTime.fromMillis(1600000000000L));
+		// same size, other content and time: extracted again
+		Path changed = target.resolve("dir1/file1");
+		try (OutputStream out = Files.newOutputStream(changed)) {
+			out.write("CONTENTS OF FILE 1".getBytes(StandardCharsets.UTF_8));
+		}
+		// gone: extracted again
+		Files.delete(target.resolve("dir2/file2"));
+
+		Assert.assertEquals(2, AwsS3ZipExtractor.extract(archive, target, executor));
+		Assert.assertEquals("contents of file 1", read(changed));
+		Assert.assertEquals("contents of file 2", read(target.resolve("dir2/file2")));
+	}
+}
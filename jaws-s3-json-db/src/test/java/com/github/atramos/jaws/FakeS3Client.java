@@ -0,0 +1,421 @@
+package com.github.atramos.jaws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * In-memory S3 for tests: objects, conditional and ranged GETs, listings and
+ * multipart uploads. Object streams report available() == 0 like real
+ * network streams.
+ */
+@SuppressWarnings("deprecation")
+class FakeS3Client extends AmazonS3Client {
+
+	static class StoredObject {
+		final byte[] data;
+		final String etag;
+		final Date lastModified;
+		final String contentEncoding;
+
+		StoredObject(byte[] data, Date lastModified, String contentEncoding) {
+			this.data = data;
+			this.etag = md5(data);
+			this.lastModified = lastModified;
+			this.contentEncoding = contentEncoding;
+		}
+	}
+
+	final NavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+
+	final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+
+	final AtomicInteger gets = new AtomicInteger();
+
+	final AtomicInteger puts = new AtomicInteger();
+
+	final AtomicInteger lists = new AtomicInteger();
+
+	final AtomicInteger aborts = new AtomicInteger();
+
+	final AtomicInteger multipartUploads = new AtomicInteger();
+
+	final AtomicInteger heads = new AtomicInteger();
+
+	final AtomicInteger partAttempts = new AtomicInteger();
+
+	/** Thrown, one per call, by the next uploadPart() calls. */
+	final Queue<RuntimeException> partFailures = new ConcurrentLinkedQueue<>();
+
+	volatile int maxKeys = 1000;
+
+	/** Milliseconds each GET takes. */
+	volatile long getDelay;
+
+	/** Last-Modified given to new objects; null for the current time. */
+	volatile Date nextLastModified;
+
+	FakeS3Client() {
+		super(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials()));
+	}
+
+	void put(String key, byte[] data) {
+		objects.put(key, new StoredObject(data, lastModified(), null));
+	}
+
+	byte[] data(String key) {
+		StoredObject o = objects.get(key);
+		return o == null ? null : o.data;
+	}
+
+	private Date lastModified() {
+		Date d = nextLastModified;
+		// S3 dates have second precision
+		return d != null ? d : new Date(System.currentTimeMillis() / 1000 * 1000);
+	}
+
+	@Override
+	public S3Object getObject(GetObjectRequest req) {
+		gets.incrementAndGet();
+		if (getDelay > 0) {
+			try {
+				Thread.sleep(getDelay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		StoredObject o = objects.get(req.getKey());
+		if (o == null) {
+			throw notFound(req.getKey());
+		}
+		if (!req.getNonmatchingETagConstraints().isEmpty()
+				&& req.getNonmatchingETagConstraints().contains(o.etag)) {
+			return null;
+		}
+		if (!req.getMatchingETagConstraints().isEmpty()
+				&& !req.getMatchingETagConstraints().contains(o.etag)) {
+			return null; // 412, which the SDK turns into null too
+		}
+		if (req.getModifiedSinceConstraint() != null
+				&& !o.lastModified.after(req.getModifiedSinceConstraint())) {
+			return null;
+		}
+		int from = 0;
+		int to = o.data.length - 1;
+		long[] range = req.getRange();
+		if (range != null) {
+			from = (int) range[0];
+			to = (int) Math.min(range[1], o.data.length - 1);
+		}
+		S3Object s3o = new S3Object();
+		s3o.setBucketName(req.getBucketName());
+		s3o.setKey(req.getKey());
+		ObjectMetadata meta = metadata(o);
+		meta.setContentLength(to - from + 1);
+		if (range != null) {
+			meta.setHeader("Content-Range", "bytes " + from + "-" + to + "/" + o.data.length);
+		}
+		s3o.setObjectMetadata(meta);
+		s3o.setObjectContent(new S3ObjectInputStream(
+				new NetworkInputStream(new ByteArrayInputStream(o.data, from, to - from + 1)), null));
+		return s3o;
+	}
+
+	@Override
+	public ObjectMetadata getObjectMetadata(String bucket, String key) {
+		StoredObject o = objects.get(key);
+		if (o == null) {
+			throw notFound(key);
+		}
+		return metadata(o);
+	}
+
+	@Override
+	public boolean doesObjectExist(String bucket, String key) {
+		heads.incrementAndGet();
+		return objects.containsKey(key);
+	}
+
+	private static ObjectMetadata metadata(StoredObject o) {
+		ObjectMetadata meta = new ObjectMetadata();
+		meta.setContentLength(o.data.length);
+		meta.setHeader("ETag", o.etag);
+		meta.setLastModified(o.lastModified);
+		if (o.contentEncoding != null) {
+			meta.setContentEncoding(o.contentEncoding);
+		}
+		return meta;
+	}
+
+	@Override
+	public PutObjectResult putObject(String bucket, String key, InputStream input, ObjectMetadata meta) {
+		puts.incrementAndGet();
+		StoredObject o = new StoredObject(readAll(input), lastModified(), meta.getContentEncoding());
+		objects.put(key, o);
+		return putResult(o);
+	}
+
+	@Override
+	public PutObjectResult putObject(PutObjectRequest req) {
+		puts.incrementAndGet();
+		byte[] data;
+		try {
+			data = req.getFile() != null ? readAll(new FileInputStream(req.getFile())) : readAll(req.getInputStream());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		String encoding = req.getMetadata() == null ? null : req.getMetadata().getContentEncoding();
+		StoredObject o = new StoredObject(data, lastModified(), encoding);
+		objects.put(req.getKey(), o);
+		return putResult(o);
+	}
+
+	private static PutObjectResult putResult(StoredObject o) {
+		PutObjectResult result = new PutObjectResult();
+		result.setETag(o.etag);
+		return result;
+	}
+
+	@Override
+	public ListObjectsV2Result listObjectsV2(ListObjectsV2Request req) {
+		lists.incrementAndGet();
+		String prefix = req.getPrefix() == null ? "" : req.getPrefix();
+		String after = req.getContinuationToken() != null ? req.getContinuationToken() : req.getStartAfter();
+		ListObjectsV2Result result = new ListObjectsV2Result();
+		TreeSet<String> commonPrefixes = new TreeSet<>();
+		int n = 0;
+		String last = null;
+		NavigableMap<String, StoredObject> tail = after == null ? objects.tailMap(prefix, true)
+				: objects.tailMap(after, false);
+		for (Map.Entry<String, StoredObject> e : tail.entrySet()) {
+			String key = e.getKey();
+			if (!key.startsWith(prefix)) {
+				if (key.compareTo(prefix) > 0) {
+					break;
+				}
+				continue;
+			}
+			if (n >= maxKeys) {
+				result.setTruncated(true);
+				result.setNextContinuationToken(last);
+				break;
+			}
+			String delimiter = req.getDelimiter();
+			int cut = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+			if (cut >= 0) {
+				String common = key.substring(0, cut + delimiter.length());
+				if (commonPrefixes.add(common)) {
+					++n;
+				}
+				last = objects.floorKey(common + Character.MAX_VALUE);
+				continue;
+			}
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setBucketName(req.getBucketName());
+			summary.setKey(key);
+			summary.setETag(e.getValue().etag);
+			summary.setSize(e.getValue().data.length);
+			summary.setLastModified(e.getValue().lastModified);
+			result.getObjectSummaries().add(summary);
+			last = key;
+			++n;
+		}
+		result.setCommonPrefixes(new ArrayList<>(commonPrefixes));
+		return result;
+	}
+
+	@Override
+	public DeleteObjectsResult deleteObjects(DeleteObjectsRequest req) {
+		List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<>();
+		for (DeleteObjectsRequest.KeyVersion kv : req.getKeys()) {
+			objects.remove(kv.getKey());
+			DeleteObjectsResult.DeletedObject d = new DeleteObjectsResult.DeletedObject();
+			d.setKey(kv.getKey());
+			deleted.add(d);
+		}
+		return new DeleteObjectsResult(deleted);
+	}
+
+	@Override
+	public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest req) {
+		multipartUploads.incrementAndGet();
+		String id = req.getKey() + "#" + System.nanoTime();
+		uploads.put(id, new TreeMap<>());
+		InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+		result.setUploadId(id);
+		result.setKey(req.getKey());
+		return result;
+	}
+
+	@Override
+	public UploadPartResult uploadPart(UploadPartRequest req) {
+		partAttempts.incrementAndGet();
+		RuntimeException failure = partFailures.poll();
+		if (failure != null) {
+			throw failure;
+		}
+		byte[] data;
+		try {
+			if (req.getFile() != null) {
+				data = new byte[(int) req.getPartSize()];
+				try (RandomAccessFile raf = new RandomAccessFile(req.getFile(), "r")) {
+					raf.seek(req.getFileOffset());
+					raf.readFully(data);
+				}
+			} else {
+				data = new byte[(int) req.getPartSize()];
+				new DataInputStream(req.getInputStream()).readFully(data);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		Map<Integer, byte[]> parts = uploads.get(req.getUploadId());
+		if (parts == null) {
+			throw new AmazonS3Exception("NoSuchUpload");
+		}
+		synchronized (parts) {
+			parts.put(req.getPartNumber(), data);
+		}
+		UploadPartResult result = new UploadPartResult();
+		result.setPartNumber(req.getPartNumber());
+		result.setETag(md5(data));
+		return result;
+	}
+
+	@Override
+	public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest req) {
+		Map<Integer, byte[]> parts = uploads.remove(req.getUploadId());
+		if (parts == null) {
+			throw new AmazonS3Exception("NoSuchUpload");
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		synchronized (parts) {
+			for (PartETag tag : req.getPartETags()) {
+				byte[] part = parts.get(tag.getPartNumber());
+				out.write(part, 0, part.length);
+			}
+		}
+		puts.incrementAndGet();
+		StoredObject o = new StoredObject(out.toByteArray(), lastModified(), null);
+		objects.put(req.getKey(), o);
+		CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+		result.setETag(o.etag);
+		return result;
+	}
+
+	@Override
+	public void abortMultipartUpload(AbortMultipartUploadRequest req) {
+		aborts.incrementAndGet();
+		if (uploads.remove(req.getUploadId()) == null) {
+			throw new AmazonS3Exception("NoSuchUpload");
+		}
+	}
+
+	static AmazonS3Exception notFound(String key) {
+		AmazonS3Exception e = new AmazonS3Exception("Not Found: " + key);
+		e.setStatusCode(404);
+		e.setErrorCode("NoSuchKey");
+		return e;
+	}
+
+	static byte[] readAll(InputStream in) {
+		try (InputStream is = in) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[65536];
+			for (int n; (n = is.read(buf)) > 0;) {
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String md5(byte[] data) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * A template that talks to this fake, with a bucket of its own so that
+	 * tests don't share cache files.
+	 */
+	AwsS3Template template() {
+		AwsS3Template template = new AwsS3Template(new ObjectMapper(),
+				new AWSStaticCredentialsProvider(new AnonymousAWSCredentials())) {
+			@Override
+			public AmazonS3Client getClient() {
+				return FakeS3Client.this;
+			}
+		};
+		template.setBucket("test-" + UUID.randomUUID());
+		return template;
+	}
+
+	/**
+	 * A stream like S3ObjectInputStream's: available() is always 0.
+	 */
+	static class NetworkInputStream extends FilterInputStream {
+		NetworkInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int available() {
+			return 0;
+		}
+	}
+}